@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.res.XmlResourceParser;
+import android.test.InstrumentationTestCase;
+import android.util.AttributeSet;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inflates proxies from several threads at once through the same
+ * {@link ProbeViewFactory}, as done when layouts are inflated in the
+ * background.
+ */
+public class ProbeViewFactoryConcurrencyTest extends InstrumentationTestCase {
+    private static final int THREAD_COUNT = 8;
+    private static final int INFLATIONS_PER_THREAD = 50;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    /**
+     * View recording the {@link AttributeSet} it was constructed with.
+     */
+    public static class RecordingView extends View {
+        private final AttributeSet mAttrs;
+
+        public RecordingView(Context context, AttributeSet attrs) {
+            super(context, attrs);
+            mAttrs = attrs;
+        }
+
+        public AttributeSet getAttrs() {
+            return mAttrs;
+        }
+    }
+
+    private static class MeasureInterceptor extends Interceptor {
+        @Override
+        public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+
+    private Context mContext;
+    private Probe mProbe;
+    private ProbeViewFactory mFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // ContextThemeWrapper has its own LayoutInflater, so the factory
+        // isn't set on the application-wide one.
+        mContext = new ContextThemeWrapper(getInstrumentation().getTargetContext(),
+                android.R.style.Theme);
+        mProbe = new Probe.Builder(mContext)
+                .interceptor(new MeasureInterceptor())
+                .deploy();
+        mFactory = (ProbeViewFactory) LayoutInflater.from(mContext).getFactory2();
+    }
+
+    public void testConcurrentInflation() throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(THREAD_COUNT);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Set<Class<?>> proxyClasses = Collections.synchronizedSet(new HashSet<Class<?>>());
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final Context threadContext = new ContextWrapper(mContext);
+
+            final Thread thread = new Thread("ProbeInflater-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+
+                        for (int j = 0; j < INFLATIONS_PER_THREAD; j++) {
+                            final XmlResourceParser parser = threadContext.getResources()
+                                    .getLayout(android.R.layout.simple_list_item_1);
+                            try {
+                                final AttributeSet attrs = moveToStartTag(parser);
+                                final View view = mFactory.onCreateView(null,
+                                        RecordingView.class.getName(), threadContext, attrs);
+
+                                assertTrue(view instanceof ViewProxy);
+                                assertSame(threadContext, view.getContext());
+                                assertSame(attrs, ((RecordingView) view).getAttrs());
+
+                                proxyClasses.add(view.getClass());
+                            } finally {
+                                parser.close();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            };
+
+            thread.start();
+        }
+
+        startLatch.countDown();
+        assertTrue(doneLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+
+        // All threads must end up sharing the same cached proxy class.
+        assertEquals(1, proxyClasses.size());
+
+        final Class<?> cachedProxyClass = ViewProxyBuilder.findCachedProxyClass(
+                RecordingView.class, mContext.getClassLoader(), mProbe.getMethodMask());
+        assertSame(cachedProxyClass, proxyClasses.iterator().next());
+    }
+
+    private static AttributeSet moveToStartTag(XmlResourceParser parser) throws Exception {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG &&
+                type != XmlPullParser.END_DOCUMENT) {
+            // Empty
+        }
+
+        if (type != XmlPullParser.START_TAG) {
+            throw new IllegalStateException("No start tag found");
+        }
+
+        return parser;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds the output of {@link EventStreamWriter} to {@link EventStreamReader}.
+ */
+public class EventStreamTest extends InstrumentationTestCase {
+    private static final int PID = 1234;
+    private static final int TRAVERSAL = 7;
+    private static final int CHILD_ID = 42;
+
+    private static class Span {
+        final int mType;
+        final String mViewClassName;
+        final int mViewIdentity;
+        final int mViewId;
+        final long mStartTime;
+        final long mDuration;
+
+        Span(int type, String viewClassName, int viewIdentity, int viewId, long startTime,
+             long duration) {
+            mType = type;
+            mViewClassName = viewClassName;
+            mViewIdentity = viewIdentity;
+            mViewId = viewId;
+            mStartTime = startTime;
+            mDuration = duration;
+        }
+    }
+
+    private static class RecordingListener implements EventStreamReader.Listener {
+        int mHelloCount;
+        int mVersion;
+        int mPid;
+
+        final List<Span> mSpans = new ArrayList<Span>();
+
+        int mTraversal;
+        long mTraversalTime;
+        String mRootClassName;
+        int mRootIdentity;
+
+        int mSnapshotTraversal;
+        List<EventStreamReader.ViewNode> mSnapshot;
+
+        @Override
+        public void onHello(int version, int pid) {
+            mHelloCount++;
+            mVersion = version;
+            mPid = pid;
+        }
+
+        @Override
+        public void onSpan(int type, String viewClassName, int viewIdentity, int viewId,
+                           long startTime, long duration) {
+            mSpans.add(new Span(type, viewClassName, viewIdentity, viewId, startTime,
+                    duration));
+        }
+
+        @Override
+        public void onTraversalStart(int traversal, long time, String rootClassName,
+                                     int rootIdentity) {
+            mTraversal = traversal;
+            mTraversalTime = time;
+            mRootClassName = rootClassName;
+            mRootIdentity = rootIdentity;
+        }
+
+        @Override
+        public void onSnapshot(int traversal, List<EventStreamReader.ViewNode> views) {
+            mSnapshotTraversal = traversal;
+            mSnapshot = views;
+        }
+    }
+
+    private FrameLayout mRootView;
+    private View mChildView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final Context context = getInstrumentation().getTargetContext();
+
+        mRootView = new FrameLayout(context);
+        mChildView = new View(context);
+        mChildView.setId(CHILD_ID);
+        mRootView.addView(mChildView);
+
+        mRootView.layout(0, 0, 100, 200);
+        mChildView.layout(10, 20, 60, 80);
+    }
+
+    private static RecordingListener read(ByteArrayOutputStream bytes) throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        new EventStreamReader(new ByteArrayInputStream(bytes.toByteArray()), listener)
+                .readAll();
+        return listener;
+    }
+
+    public void testRoundTrip() throws Exception {
+        final SpanBuffer buffer = new SpanBuffer(16);
+        buffer.add(SpanBuffer.TYPE_TRAVERSAL, mRootView, TRAVERSAL, 1000, 1000);
+        buffer.add(SpanBuffer.TYPE_ON_MEASURE, mChildView, CHILD_ID, 1000, 1500);
+        buffer.add(SpanBuffer.TYPE_DRAW, mChildView, CHILD_ID, 2000, 2600);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final EventStreamWriter writer = new EventStreamWriter(bytes);
+        writer.writeHello(PID);
+        writer.writeSpans(buffer, buffer.getReadSequence(), buffer.getWriteSequence());
+        writer.writeSnapshot(ViewTreeSnapshot.capture(mRootView, TRAVERSAL));
+        writer.flush();
+
+        final RecordingListener listener = read(bytes);
+
+        assertEquals(1, listener.mHelloCount);
+        assertEquals(EventStreamWriter.VERSION, listener.mVersion);
+        assertEquals(PID, listener.mPid);
+
+        final int rootIdentity = System.identityHashCode(mRootView);
+        final int childIdentity = System.identityHashCode(mChildView);
+
+        assertEquals(TRAVERSAL, listener.mTraversal);
+        assertEquals(1000, listener.mTraversalTime);
+        assertEquals(FrameLayout.class.getName(), listener.mRootClassName);
+        assertEquals(rootIdentity, listener.mRootIdentity);
+
+        assertEquals(2, listener.mSpans.size());
+
+        final Span measureSpan = listener.mSpans.get(0);
+        assertEquals(EventStreamReader.SPAN_ON_MEASURE, measureSpan.mType);
+        assertEquals(View.class.getName(), measureSpan.mViewClassName);
+        assertEquals(childIdentity, measureSpan.mViewIdentity);
+        assertEquals(CHILD_ID, measureSpan.mViewId);
+        assertEquals(1000, measureSpan.mStartTime);
+        assertEquals(500, measureSpan.mDuration);
+
+        final Span drawSpan = listener.mSpans.get(1);
+        assertEquals(EventStreamReader.SPAN_DRAW, drawSpan.mType);
+        assertEquals(View.class.getName(), drawSpan.mViewClassName);
+        assertEquals(2000, drawSpan.mStartTime);
+        assertEquals(600, drawSpan.mDuration);
+
+        assertEquals(TRAVERSAL, listener.mSnapshotTraversal);
+        assertEquals(2, listener.mSnapshot.size());
+
+        final EventStreamReader.ViewNode rootNode = listener.mSnapshot.get(0);
+        assertEquals(FrameLayout.class.getName(), rootNode.getViewClassName());
+        assertEquals(rootIdentity, rootNode.getViewIdentity());
+        assertEquals(0, rootNode.getParentIdentity());
+        assertEquals(View.NO_ID, rootNode.getViewId());
+        assertEquals(100, rootNode.getWidth());
+        assertEquals(200, rootNode.getHeight());
+
+        final EventStreamReader.ViewNode childNode = listener.mSnapshot.get(1);
+        assertEquals(View.class.getName(), childNode.getViewClassName());
+        assertEquals(childIdentity, childNode.getViewIdentity());
+        assertEquals(rootIdentity, childNode.getParentIdentity());
+        assertEquals(CHILD_ID, childNode.getViewId());
+        assertEquals(10, childNode.getLeft());
+        assertEquals(20, childNode.getTop());
+        assertEquals(50, childNode.getWidth());
+        assertEquals(60, childNode.getHeight());
+    }
+
+    public void testSpansSplitAcrossFrames() throws Exception {
+        final int spanCount = EventStreamWriter.MAX_SPANS_PER_FRAME + 10;
+
+        final SpanBuffer buffer = new SpanBuffer(spanCount);
+        for (int i = 0; i < spanCount; i++) {
+            buffer.add(SpanBuffer.TYPE_ON_LAYOUT, mChildView, CHILD_ID, i, i + 1);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final EventStreamWriter writer = new EventStreamWriter(bytes);
+        writer.writeHello(PID);
+        writer.writeSpans(buffer, buffer.getReadSequence(), buffer.getWriteSequence());
+        writer.flush();
+
+        final RecordingListener listener = read(bytes);
+
+        assertEquals(spanCount, listener.mSpans.size());
+        for (int i = 0; i < spanCount; i++) {
+            final Span span = listener.mSpans.get(i);
+            assertEquals(EventStreamReader.SPAN_ON_LAYOUT, span.mType);
+            assertEquals(View.class.getName(), span.mViewClassName);
+            assertEquals(i, span.mStartTime);
+            assertEquals(1, span.mDuration);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Process;
+import android.test.InstrumentationTestCase;
+import android.widget.FrameLayout;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.ViewProxy;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link StreamingInterceptor#streamEvents(java.io.OutputStream,
+ * StreamingInterceptor.Session)} over a pipe while calls are recorded.
+ */
+public class StreamingInterceptorTest extends InstrumentationTestCase {
+    private static final String SOCKET_NAME = "probe_test";
+    private static final int CAPACITY = 64;
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final int MAX_FRAMES = 100;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Attached view that intercepts its own calls, so that no proxy is needed.
+     */
+    private static class TestView extends FrameLayout implements ViewProxy {
+        private final IBinder mWindowToken = new Binder();
+
+        TestView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public IBinder getWindowToken() {
+            return mWindowToken;
+        }
+
+        @Override
+        public void setInterceptor(Interceptor interceptor) {
+        }
+
+        @Override
+        public void invokeOnMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        }
+
+        @Override
+        public void invokeOnLayout(boolean changed, int l, int t, int r, int b) {
+        }
+
+        @Override
+        public void invokeDraw(Canvas canvas) {
+        }
+
+        @Override
+        public void invokeOnDraw(Canvas canvas) {
+        }
+
+        @Override
+        public void invokeRequestLayout() {
+        }
+
+        @Override
+        public void invokeForceLayout() {
+        }
+
+        @Override
+        public void invokeSetMeasuredDimension(int width, int height) {
+        }
+    }
+
+    private static class RecordingListener implements EventStreamReader.Listener {
+        int mHelloCount;
+        int mPid;
+
+        final List<Integer> mSpanTypes = new ArrayList<Integer>();
+        final List<Integer> mSpanIdentities = new ArrayList<Integer>();
+
+        int mTraversal;
+        String mRootClassName;
+        int mRootIdentity;
+
+        int mSnapshotTraversal;
+        List<EventStreamReader.ViewNode> mSnapshot;
+
+        @Override
+        public void onHello(int version, int pid) {
+            mHelloCount++;
+            mPid = pid;
+        }
+
+        @Override
+        public void onSpan(int type, String viewClassName, int viewIdentity, int viewId,
+                           long startTime, long duration) {
+            mSpanTypes.add(type);
+            mSpanIdentities.add(viewIdentity);
+        }
+
+        @Override
+        public void onTraversalStart(int traversal, long time, String rootClassName,
+                                     int rootIdentity) {
+            mTraversal = traversal;
+            mRootClassName = rootClassName;
+            mRootIdentity = rootIdentity;
+        }
+
+        @Override
+        public void onSnapshot(int traversal, List<EventStreamReader.ViewNode> views) {
+            mSnapshotTraversal = traversal;
+            mSnapshot = views;
+        }
+    }
+
+    /**
+     * A client reading from {@link StreamingInterceptor#streamEvents(
+     * java.io.OutputStream, StreamingInterceptor.Session)} through a pipe.
+     */
+    private class Client {
+        final StreamingInterceptor.Session mSession;
+        final PipedInputStream mIn;
+        final PipedOutputStream mOut;
+        final RecordingListener mListener;
+        final EventStreamReader mReader;
+        final Thread mThread;
+
+        volatile IOException mFailure;
+
+        Client() throws IOException {
+            mSession = new StreamingInterceptor.Session();
+            mOut = new PipedOutputStream();
+            mIn = new PipedInputStream(mOut, PIPE_SIZE);
+            mListener = new RecordingListener();
+            mReader = new EventStreamReader(mIn, mListener);
+
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mInterceptor.streamEvents(mOut, mSession);
+                    } catch (IOException e) {
+                        mFailure = e;
+                    } finally {
+                        try {
+                            mOut.close();
+                        } catch (IOException e) {
+                            // Ignore.
+                        }
+                    }
+                }
+            });
+            mThread.start();
+        }
+
+        void awaitConnected() throws Exception {
+            assertTrue(mReader.readFrame());
+            assertEquals(1, mListener.mHelloCount);
+
+            // Connected right after the hello frame is flushed.
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!mInterceptor.isConnected()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        void readUntilSpan(int type) throws Exception {
+            for (int i = 0; i < MAX_FRAMES; i++) {
+                if (mListener.mSpanTypes.contains(type)) {
+                    return;
+                }
+                assertTrue(mReader.readFrame());
+            }
+            fail("No span of type " + type);
+        }
+
+        void stop() throws Exception {
+            mSession.mStopped = true;
+            LockSupport.unpark(mThread);
+            mThread.join(TIMEOUT_MILLIS);
+            assertFalse(mThread.isAlive());
+        }
+    }
+
+    private StreamingInterceptor mInterceptor;
+    private TestView mView;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mInterceptor = new StreamingInterceptor(SOCKET_NAME, CAPACITY);
+        mView = new TestView(getInstrumentation().getTargetContext());
+    }
+
+    private void runOnMainSync(Runnable runnable) {
+        // The traversal monitor posts frame callbacks, which needs a looper.
+        getInstrumentation().runOnMainSync(runnable);
+    }
+
+    public void testStreamEvents() throws Exception {
+        final Client client = new Client();
+        client.awaitConnected();
+        assertEquals(Process.myPid(), client.mListener.mPid);
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mInterceptor.onMeasure(mView, 0, 0);
+                mInterceptor.onLayout(mView, true, 0, 0, 100, 100);
+            }
+        });
+
+        client.readUntilSpan(EventStreamReader.SPAN_ON_LAYOUT);
+
+        final RecordingListener listener = client.mListener;
+        final int identity = System.identityHashCode(mView);
+
+        // Spans are reported with the proxy's base class.
+        assertTrue(listener.mTraversal > 0);
+        assertEquals(FrameLayout.class.getName(), listener.mRootClassName);
+        assertEquals(identity, listener.mRootIdentity);
+
+        assertEquals(2, listener.mSpanTypes.size());
+        assertEquals(EventStreamReader.SPAN_ON_MEASURE, (int) listener.mSpanTypes.get(0));
+        assertEquals(EventStreamReader.SPAN_ON_LAYOUT, (int) listener.mSpanTypes.get(1));
+        assertEquals(identity, (int) listener.mSpanIdentities.get(0));
+
+        // A snapshot is requested for each new client.
+        assertEquals(listener.mTraversal, listener.mSnapshotTraversal);
+        assertEquals(1, listener.mSnapshot.size());
+        assertEquals(identity, listener.mSnapshot.get(0).getViewIdentity());
+
+        client.stop();
+        assertNull(client.mFailure);
+
+        // The stream ends cleanly once stopped.
+        for (int i = 0; i < MAX_FRAMES && client.mReader.readFrame(); i++) {
+            // Skip trailing frames.
+        }
+        assertFalse(client.mReader.readFrame());
+    }
+
+    public void testDiscardsCallsRecordedForPreviousClient() throws Exception {
+        final Client previousClient = new Client();
+        previousClient.awaitConnected();
+        previousClient.stop();
+
+        // Recorded after the previous client stopped reading.
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mInterceptor.requestLayout(mView);
+            }
+        });
+
+        final Client client = new Client();
+        client.awaitConnected();
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mInterceptor.onDraw(mView, null);
+            }
+        });
+
+        client.readUntilSpan(EventStreamReader.SPAN_ON_DRAW);
+        assertFalse(client.mListener.mSpanTypes.contains(EventStreamReader.SPAN_REQUEST_LAYOUT));
+
+        client.stop();
+        assertNull(client.mFailure);
+    }
+
+    public void testDetectsDisconnectedClientWhileIdle() throws Exception {
+        final Client client = new Client();
+        client.awaitConnected();
+
+        // No calls are recorded, only heartbeats notice the client is gone.
+        client.mIn.close();
+
+        client.mThread.join(TIMEOUT_MILLIS);
+        assertFalse(client.mThread.isAlive());
+        assertNotNull(client.mFailure);
+        assertFalse(mInterceptor.isConnected());
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.lucasr.probe.Probe.OnProxiesReadyListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.lucasr.probe.ViewClassUtil.canProxyViewClass;
+import static org.lucasr.probe.ViewClassUtil.findProxyViewClass;
+import static org.lucasr.probe.ViewClassUtil.loadViewClass;
+
+/**
+ * Generates runtime {@link android.view.View} proxies on a background thread
+ * so that inflation doesn't have to pay for it on the UI thread.
+ *
+ * <p>Prewarmed proxies override all view methods as they're generated before
+ * the {@link Interceptor} is known.</p>
+ *
+ * @see Probe#prewarm(Context, Class[])
+ * @see Probe.Builder#asyncProxies(boolean)
+ * @see DexProxyBuilder
+ */
+final class AsyncProxyGenerator {
+    private static final String TAG = "Probe";
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ProbeProxyGenerator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Object sLock = new Object();
+
+    // Requests queued for the next batch.
+    private static final List<ProxyRequest> sQueuedRequests = new ArrayList<ProxyRequest>();
+
+    // Requests either queued or being generated.
+    private static final Set<ProxyRequest> sPendingRequests = new HashSet<ProxyRequest>();
+
+    private static final Set<ProxyRequest> sFailedRequests = new HashSet<ProxyRequest>();
+    private static final Set<OnProxiesReadyListener> sListeners =
+            new LinkedHashSet<OnProxiesReadyListener>();
+
+    private static boolean sDrainScheduled;
+
+    private AsyncProxyGenerator() {
+    }
+
+    /**
+     * A view class and the mask of view methods its proxy should override.
+     */
+    private static final class ProxyRequest {
+        final Class<?> viewClass;
+        final int methodMask;
+
+        ProxyRequest(Class<?> viewClass, int methodMask) {
+            this.viewClass = viewClass;
+            this.methodMask = methodMask;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProxyRequest)) {
+                return false;
+            }
+
+            final ProxyRequest other = (ProxyRequest) o;
+            return (viewClass == other.viewClass && methodMask == other.methodMask);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * viewClass.hashCode() + methodMask;
+        }
+    }
+
+    private static Context getTargetContext(Context context) {
+        // Avoid holding on to an Activity while generating proxies.
+        final Context appContext = context.getApplicationContext();
+        return (appContext != null ? appContext : context);
+    }
+
+    /**
+     * Returns the classes in the given list that still need a runtime proxy.
+     */
+    private static Class<?>[] findMissingProxies(Context context, List<Class<?>> viewClasses,
+                                                 int methodMask) {
+        final ClassLoader classLoader = context.getClassLoader();
+        final List<Class<?>> missing = new ArrayList<Class<?>>();
+
+        for (Class<?> viewClass : viewClasses) {
+            if (ViewProxy.class.isAssignableFrom(viewClass) ||
+                !canProxyViewClass(viewClass) ||
+                missing.contains(viewClass) ||
+                ViewProxyBuilder.findCachedProxyClass(viewClass, classLoader,
+                        methodMask) != null) {
+                continue;
+            }
+
+            final Class<?> proxyClass = findProxyViewClass(context, viewClass.getName());
+            if (proxyClass != null) {
+                // This app ships with the build-time proxy.
+                ViewProxyBuilder.cacheProxyClass(viewClass, classLoader, methodMask, proxyClass);
+                continue;
+            }
+
+            missing.add(viewClass);
+        }
+
+        return missing.toArray(new Class<?>[missing.size()]);
+    }
+
+    /**
+     * Generates proxies for the given view classes. Returns the classes for
+     * which proxy generation failed.
+     */
+    private static List<Class<?>> generateProxies(Context context, List<Class<?>> viewClasses,
+                                                  int methodMask) {
+        final List<Class<?>> failedClasses = new ArrayList<Class<?>>();
+
+        final Class<?>[] baseClasses = findMissingProxies(context, viewClasses, methodMask);
+        if (baseClasses.length == 0) {
+            return failedClasses;
+        }
+
+        try {
+            final Class<?>[] proxyClasses =
+                    DexProxyBuilder.generateProxyClasses(context, baseClasses, methodMask);
+            for (int i = 0; i < baseClasses.length; i++) {
+                ViewProxyBuilder.cacheProxyClass(baseClasses[i], context.getClassLoader(),
+                        methodMask, proxyClasses[i]);
+            }
+
+            return failedClasses;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to generate view proxies", e);
+        } catch (RuntimeException e) {
+            // e.g. UnsupportedOperationException or DexMaker rejecting a class.
+            Log.w(TAG, "Failed to generate view proxies", e);
+        } catch (LinkageError e) {
+            // e.g. NoClassDefFoundError or VerifyError while loading a class.
+            Log.w(TAG, "Failed to generate view proxies", e);
+        }
+
+        if (baseClasses.length == 1) {
+            failedClasses.add(baseClasses[0]);
+            return failedClasses;
+        }
+
+        // Don't let a single class break the whole batch, generate
+        // proxies one by one instead.
+        for (int i = 0; i < baseClasses.length; i++) {
+            try {
+                final Class<?> proxyClass =
+                        DexProxyBuilder.generateProxyClass(context, baseClasses[i], methodMask);
+                ViewProxyBuilder.cacheProxyClass(baseClasses[i], context.getClassLoader(),
+                        methodMask, proxyClass);
+            } catch (IOException e) {
+                failedClasses.add(baseClasses[i]);
+            } catch (RuntimeException e) {
+                failedClasses.add(baseClasses[i]);
+            } catch (LinkageError e) {
+                failedClasses.add(baseClasses[i]);
+            }
+        }
+
+        return failedClasses;
+    }
+
+    /**
+     * Notifies the registered listeners on the UI thread if there are no
+     * pending proxy classes. Should be called with {@code sLock} held.
+     */
+    private static void notifyListenersIfIdle() {
+        if (!sPendingRequests.isEmpty() || sListeners.isEmpty()) {
+            return;
+        }
+
+        final List<OnProxiesReadyListener> listeners =
+                new ArrayList<OnProxiesReadyListener>(sListeners);
+        sListeners.clear();
+
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnProxiesReadyListener listener : listeners) {
+                    listener.onProxiesReady();
+                }
+            }
+        });
+    }
+
+    /**
+     * Generates proxies for all the classes queued so far in a single batch
+     * per method mask.
+     */
+    private static void drainQueue(Context context) {
+        final List<ProxyRequest> batch;
+        synchronized (sLock) {
+            batch = new ArrayList<ProxyRequest>(sQueuedRequests);
+            sQueuedRequests.clear();
+            sDrainScheduled = false;
+        }
+
+        final Map<Integer, List<Class<?>>> classesByMask =
+                new LinkedHashMap<Integer, List<Class<?>>>();
+        for (ProxyRequest request : batch) {
+            List<Class<?>> classes = classesByMask.get(request.methodMask);
+            if (classes == null) {
+                classes = new ArrayList<Class<?>>();
+                classesByMask.put(request.methodMask, classes);
+            }
+            classes.add(request.viewClass);
+        }
+
+        final List<ProxyRequest> failedRequests = new ArrayList<ProxyRequest>();
+        boolean completed = false;
+        try {
+            for (Map.Entry<Integer, List<Class<?>>> entry : classesByMask.entrySet()) {
+                final int methodMask = entry.getKey();
+                for (Class<?> failedClass :
+                        generateProxies(context, entry.getValue(), methodMask)) {
+                    failedRequests.add(new ProxyRequest(failedClass, methodMask));
+                }
+            }
+
+            completed = true;
+        } finally {
+            synchronized (sLock) {
+                sPendingRequests.removeAll(batch);
+
+                // Unexpected failure, don't retry any of the batch's classes
+                // or they would keep failing on every inflation.
+                sFailedRequests.addAll(completed ? failedRequests : batch);
+
+                notifyListenersIfIdle();
+            }
+        }
+    }
+
+    /**
+     * Requests a proxy for the given view class to be generated on a background
+     * thread. Classes requested while a batch is being generated are queued
+     * and generated together in the next batch. The given (optional) listener
+     * is notified once there are no more pending classes.
+     */
+    static void requestProxyClass(Context context, Class<?> viewClass, int methodMask,
+                                  OnProxiesReadyListener listener) {
+        if (!ViewProxyBuilder.isDexMakerAvailable()) {
+            return;
+        }
+
+        final Context targetContext = getTargetContext(context);
+
+        synchronized (sLock) {
+            if (listener != null) {
+                sListeners.add(listener);
+            }
+
+            final ProxyRequest request = new ProxyRequest(viewClass, methodMask);
+
+            // Don't retry classes that can't be proxied.
+            if (sFailedRequests.contains(request) || !sPendingRequests.add(request)) {
+                notifyListenersIfIdle();
+                return;
+            }
+
+            sQueuedRequests.add(request);
+
+            if (!sDrainScheduled) {
+                sDrainScheduled = true;
+                sExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainQueue(targetContext);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Generates proxies for all the given view classes in a single dex file
+     * on a background thread.
+     */
+    static void prewarm(Context context, final Class<?>[] viewClasses) {
+        if (!ViewProxyBuilder.isDexMakerAvailable()) {
+            return;
+        }
+
+        final Context targetContext = getTargetContext(context);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Class<?>> classes = new ArrayList<Class<?>>(viewClasses.length);
+                for (int i = 0; i < viewClasses.length; i++) {
+                    classes.add(viewClasses[i]);
+                }
+
+                generateProxies(targetContext, classes, Interceptor.MASK_ALL);
+            }
+        });
+    }
+
+    /**
+     * Generates proxies for all the view classes listed at build time by
+     * Probe's Gradle plugin on a background thread.
+     */
+    static void prewarm(Context context) {
+        if (!ViewProxyBuilder.isDexMakerAvailable()) {
+            return;
+        }
+
+        final Context targetContext = getTargetContext(context);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String[] classNames = ViewClassUtil.loadViewClassNames(targetContext);
+                if (classNames == null) {
+                    return;
+                }
+
+                final List<Class<?>> classes = new ArrayList<Class<?>>(classNames.length);
+                for (int i = 0; i < classNames.length; i++) {
+                    try {
+                        classes.add(loadViewClass(targetContext, classNames[i]));
+                    } catch (ClassNotFoundException e) {
+                        continue;
+                    } catch (ClassCastException e) {
+                        continue;
+                    }
+                }
+
+                generateProxies(targetContext, classes, Interceptor.MASK_ALL);
+            }
+        });
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Flattened form of a {@link Filter} built once when a {@link Probe} is deployed.
+ * Nested {@link Filter.Compose} filters are flattened into a single list of
+ * filters sorted by the cost of the inputs they read, so that cheap checks
+ * (e.g. tag name) run before expensive ones (e.g. attributes).
+ *
+ * @see Filter.Inputs
+ */
+final class CompiledFilter implements Filter {
+    private final Filter[] mFilters;
+
+    private CompiledFilter(Filter[] filters) {
+        mFilters = filters;
+    }
+
+    private static int getInputs(Filter filter) {
+        if (filter instanceof Filter.Inputs) {
+            return ((Filter.Inputs) filter).getInputs();
+        }
+
+        return Filter.Inputs.ALL;
+    }
+
+    private static void flatten(Filter filter, List<Filter> filters) {
+        // Compose subclasses might override shouldIntercept(), keep them as they are.
+        if (filter.getClass() == Filter.Compose.class) {
+            final Filter[] children = ((Filter.Compose) filter).getFilters();
+            for (int i = 0; i < children.length; i++) {
+                flatten(children[i], filters);
+            }
+        } else {
+            filters.add(filter);
+        }
+    }
+
+    /**
+     * Compiles the given {@link Filter}. Returns {@code null} if the given
+     * filter is {@code null}.
+     */
+    static Filter compile(Filter filter) {
+        if (filter == null) {
+            return null;
+        }
+
+        final List<Filter> filters = new ArrayList<Filter>();
+        flatten(filter, filters);
+
+        // Input flags are ordered by cost, the stable sort keeps the
+        // original order for filters reading the same inputs.
+        Collections.sort(filters, new Comparator<Filter>() {
+            @Override
+            public int compare(Filter lhs, Filter rhs) {
+                final int lhsInputs = getInputs(lhs);
+                final int rhsInputs = getInputs(rhs);
+                return (lhsInputs < rhsInputs ? -1 : (lhsInputs == rhsInputs ? 0 : 1));
+            }
+        });
+
+        if (filters.size() == 1) {
+            return filters.get(0);
+        }
+
+        return new CompiledFilter(filters.toArray(new Filter[filters.size()]));
+    }
+
+    @Override
+    public boolean shouldIntercept(Context context, View parent, String name,
+                                   AttributeSet attrs) {
+        for (int i = 0; i < mFilters.length; i++) {
+            if (!mFilters[i].shouldIntercept(context, parent, name, attrs)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.graphics.Canvas;
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dispatch view method calls to two or more {@link Interceptor}s from the
+ * same view proxy. For example:
+ * <pre>
+ * Probe.deploy(this, new CompositeInterceptor(new TimingInterceptor(),
+ *         new OvermeasureInterceptor(R.id.root)));
+ * </pre>
+ *
+ * <p>Interceptors are nested in the given order: the first one is the outermost
+ * and each {@code invoke*} call made by an interceptor is dispatched to the next
+ * one. Only the last interceptor calls the view's original method, which means
+ * the original method is called exactly once as long as every interceptor calls
+ * through. An interceptor that doesn't call its {@code invoke*} method overrides
+ * the call for all the interceptors that follow it.</p>
+ *
+ * <p>An {@link Interceptor} can only be part of one {@link CompositeInterceptor}.
+ * Nested {@link CompositeInterceptor}s are flattened.</p>
+ */
+public class CompositeInterceptor extends Interceptor {
+    private final Interceptor mFirst;
+
+    public CompositeInterceptor(Interceptor interceptor1, Interceptor interceptor2) {
+        this(new Interceptor[] { interceptor1, interceptor2 });
+    }
+
+    public CompositeInterceptor(Interceptor[] interceptors) {
+        final List<Interceptor> chain = new ArrayList<Interceptor>();
+        flatten(interceptors, chain);
+
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("Interceptors should not be empty.");
+        }
+
+        final int count = chain.size();
+        for (int i = 0; i < count; i++) {
+            chain.get(i).mNext = (i + 1 < count ? chain.get(i + 1) : null);
+        }
+
+        mFirst = chain.get(0);
+    }
+
+    private static void flatten(Interceptor[] interceptors, List<Interceptor> chain) {
+        for (int i = 0; i < interceptors.length; i++) {
+            final Interceptor interceptor = interceptors[i];
+            if (interceptor == null) {
+                throw new IllegalArgumentException("Interceptor should not be null.");
+            }
+
+            if (interceptor.mComposed) {
+                throw new IllegalArgumentException("Interceptor is already part of a " +
+                        "CompositeInterceptor.");
+            }
+
+            interceptor.mComposed = true;
+
+            if (interceptor instanceof CompositeInterceptor) {
+                Interceptor child = ((CompositeInterceptor) interceptor).mFirst;
+                while (child != null) {
+                    chain.add(child);
+                    child = child.mNext;
+                }
+            } else {
+                chain.add(interceptor);
+            }
+        }
+    }
+
+    @Override
+    int getInterceptedMethods() {
+        int mask = 0;
+
+        Interceptor interceptor = mFirst;
+        while (interceptor != null) {
+            mask |= interceptor.getInterceptedMethods();
+            interceptor = interceptor.mNext;
+        }
+
+        return mask;
+    }
+
+    @Override
+    public void dumpStats(PrintWriter writer) {
+        Interceptor interceptor = mFirst;
+        while (interceptor != null) {
+            interceptor.dumpStats(writer);
+            interceptor = interceptor.mNext;
+        }
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        mFirst.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        mFirst.onLayout(view, changed, l, t, r, b);
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        mFirst.draw(view, canvas);
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        mFirst.onDraw(view, canvas);
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        mFirst.requestLayout(view);
+    }
+
+    @Override
+    public void forceLayout(View view) {
+        mFirst.forceLayout(view);
+    }
+}
@@ -21,7 +21,10 @@
 package org.lucasr.probe;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.graphics.Canvas;
+import android.os.Build;
 import android.view.View;
 
 import com.google.dexmaker.Code;
@@ -33,7 +36,16 @@ import com.google.dexmaker.Local;
 import com.google.dexmaker.MethodId;
 import com.google.dexmaker.TypeId;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import dalvik.system.DexClassLoader;
 
 import static java.lang.reflect.Modifier.PRIVATE;
 import static java.lang.reflect.Modifier.PUBLIC;
@@ -44,6 +56,22 @@ import static org.lucasr.probe.ViewProxyBuilder.CONSTRUCTOR_ARG_TYPES;
  * to dynamically wrap the inflated {@link android.view.View} instances for a given
  * {@link org.lucasr.probe.Probe}.
  *
+ * <p>Generated proxies are persisted in the app's private storage so that they
+ * don't have to be generated again on later launches. Cached dex files are keyed
+ * by the base class name, the app and platform builds the base class comes from,
+ * and the Probe version that generated them. Proxies for several classes can be
+ * generated at once in a single dex file, see
+ * {@link #generateProxyClasses(Context, Class[], int)}.</p>
+ *
+ * <p>Proxy classes only override the view methods the deployed {@link Interceptor}
+ * actually overrides, all other methods stay on the base class' implementation.
+ * Cached dex files are also keyed by the set of overridden methods. Overridden
+ * methods call the base class' implementation directly while
+ * {@link TraversalMonitor#sInterceptCalls} is cleared.</p>
+ *
+ * <p>Proxy generation is serialized so that concurrent inflations never
+ * write the same dex file at the same time.</p>
+ *
  * @see org.lucasr.probe.Probe
  * @see org.lucasr.probe.ViewProxyBuilder
  * @see org.lucasr.probe.ProbeViewFactory
@@ -78,6 +106,11 @@ final class DexProxyBuilder {
     }
 
     private static final String DEX_CACHE_DIRECTORY = "probe";
+    private static final String DEX_FILE_EXTENSION = ".jar";
+    private static final String DEX_ENTRY_NAME = "classes.dex";
+    private static final String BATCH_DEX_FILE_PREFIX = "batch-";
+
+    private static File sDexCache;
 
     private static final String FIELD_NAME_INTERCEPTOR = "mInterceptor";
 
@@ -88,6 +121,9 @@ final class DexProxyBuilder {
             TypeId.get(ViewProxy.class);
     private static final TypeId<Void> VOID_TYPE = TypeId.get(void.class);
 
+    private static final FieldId<TraversalMonitor, Boolean> INTERCEPT_CALLS_FIELD =
+            TypeId.get(TraversalMonitor.class).getField(TypeId.BOOLEAN, "sInterceptCalls");
+
     private DexProxyBuilder() {
     }
 
@@ -122,7 +158,8 @@ final class DexProxyBuilder {
      */
     private static <T, G extends T> void generateOnMeasureMethod(DexMaker dexMaker,
                                                                  TypeId<G> generatedType,
-                                                                 TypeId<T> baseType) {
+                                                                 TypeId<T> baseType,
+                                                                 boolean intercept) {
         final FieldId<G, Interceptor> interceptorField =
                 generatedType.getField(INTERCEPTOR_TYPE, FIELD_NAME_INTERCEPTOR);
 
@@ -133,30 +170,40 @@ final class DexProxyBuilder {
         final MethodId<Interceptor, Void> onMeasureMethod =
                 INTERCEPTOR_TYPE.getMethod(VOID_TYPE, methodName, VIEW_TYPE, TypeId.INT, TypeId.INT);
 
-        final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName,
-                TypeId.INT, TypeId.INT);
-        final Code code = dexMaker.declare(methodId, PUBLIC);
-
-        final Local<G> localThis = code.getThis(generatedType);
-        final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Integer> localWidth = code.getParameter(0, TypeId.INT);
-        final Local<Integer> localHeight = code.getParameter(1, TypeId.INT);
-
-        code.iget(interceptorField, localInterceptor, localThis);
-        code.loadConstant(nullInterceptor, null);
-
-        // Interceptor is not null, call it.
-        final Label interceptorNullCase = new Label();
-        code.compare(Comparison.EQ, interceptorNullCase, nullInterceptor, localInterceptor);
-        code.invokeVirtual(onMeasureMethod, null, localInterceptor, localThis,
-                localWidth, localHeight);
-        code.returnVoid();
-
-        // Interceptor is null, call super method.
-        code.mark(interceptorNullCase);
-        code.invokeSuper(superMethod, null, localThis, localWidth, localHeight);
-        code.returnVoid();
+        if (intercept) {
+            final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName,
+                    TypeId.INT, TypeId.INT);
+            final Code code = dexMaker.declare(methodId, PUBLIC);
+
+            final Local<G> localThis = code.getThis(generatedType);
+            final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Boolean> localInterceptCalls = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> falseConstant = code.newLocal(TypeId.BOOLEAN);
+            final Local<Integer> localWidth = code.getParameter(0, TypeId.INT);
+            final Local<Integer> localHeight = code.getParameter(1, TypeId.INT);
+
+            final Label superCase = new Label();
+
+            // Calls are not being intercepted, skip the interceptor.
+            code.sget(INTERCEPT_CALLS_FIELD, localInterceptCalls);
+            code.loadConstant(falseConstant, false);
+            code.compare(Comparison.EQ, superCase, falseConstant, localInterceptCalls);
+
+            code.iget(interceptorField, localInterceptor, localThis);
+            code.loadConstant(nullInterceptor, null);
+
+            // Interceptor is not null, call it.
+            code.compare(Comparison.EQ, superCase, nullInterceptor, localInterceptor);
+            code.invokeVirtual(onMeasureMethod, null, localInterceptor, localThis,
+                    localWidth, localHeight);
+            code.returnVoid();
+
+            // Interceptor is null or skipped, call super method.
+            code.mark(superCase);
+            code.invokeSuper(superMethod, null, localThis, localWidth, localHeight);
+            code.returnVoid();
+        }
 
         final MethodId<G, Void> callsSuperMethod = generatedType.getMethod(VOID_TYPE,
                 ViewMethod.ON_MEASURE.getInvokeName(), TypeId.INT, TypeId.INT);
@@ -176,7 +223,8 @@ final class DexProxyBuilder {
      */
     private static <T, G extends T> void generateOnLayoutMethod(DexMaker dexMaker,
                                                                 TypeId<G> generatedType,
-                                                                TypeId<T> baseType) {
+                                                                TypeId<T> baseType,
+                                                                boolean intercept) {
         final FieldId<G, Interceptor> interceptorField =
                 generatedType.getField(INTERCEPTOR_TYPE, FIELD_NAME_INTERCEPTOR);
 
@@ -188,34 +236,44 @@ final class DexProxyBuilder {
                 INTERCEPTOR_TYPE.getMethod(VOID_TYPE, methodName, VIEW_TYPE, TypeId.BOOLEAN,
                         TypeId.INT, TypeId.INT, TypeId.INT, TypeId.INT);
 
-        final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName,
-                TypeId.BOOLEAN, TypeId.INT, TypeId.INT, TypeId.INT, TypeId.INT);
-        final Code code = dexMaker.declare(methodId, PUBLIC);
-
-        final Local<G> localThis = code.getThis(generatedType);
-        final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Boolean> localChanged = code.getParameter(0, TypeId.BOOLEAN);
-        final Local<Integer> localLeft = code.getParameter(1, TypeId.INT);
-        final Local<Integer> localTop = code.getParameter(2, TypeId.INT);
-        final Local<Integer> localRight = code.getParameter(3, TypeId.INT);
-        final Local<Integer> localBottom = code.getParameter(4, TypeId.INT);
-
-        code.iget(interceptorField, localInterceptor, localThis);
-        code.loadConstant(nullInterceptor, null);
-
-        // Interceptor is not null, call it.
-        final Label interceptorNullCase = new Label();
-        code.compare(Comparison.EQ, interceptorNullCase, nullInterceptor, localInterceptor);
-        code.invokeVirtual(onLayoutMethod, null, localInterceptor, localThis, localChanged,
-                localLeft, localTop, localRight, localBottom);
-        code.returnVoid();
-
-        // Interceptor is null, call super method.
-        code.mark(interceptorNullCase);
-        code.invokeSuper(superMethod, null, localThis, localChanged, localLeft, localTop,
-                localRight, localBottom);
-        code.returnVoid();
+        if (intercept) {
+            final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName,
+                    TypeId.BOOLEAN, TypeId.INT, TypeId.INT, TypeId.INT, TypeId.INT);
+            final Code code = dexMaker.declare(methodId, PUBLIC);
+
+            final Local<G> localThis = code.getThis(generatedType);
+            final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Boolean> localInterceptCalls = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> falseConstant = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> localChanged = code.getParameter(0, TypeId.BOOLEAN);
+            final Local<Integer> localLeft = code.getParameter(1, TypeId.INT);
+            final Local<Integer> localTop = code.getParameter(2, TypeId.INT);
+            final Local<Integer> localRight = code.getParameter(3, TypeId.INT);
+            final Local<Integer> localBottom = code.getParameter(4, TypeId.INT);
+
+            final Label superCase = new Label();
+
+            // Calls are not being intercepted, skip the interceptor.
+            code.sget(INTERCEPT_CALLS_FIELD, localInterceptCalls);
+            code.loadConstant(falseConstant, false);
+            code.compare(Comparison.EQ, superCase, falseConstant, localInterceptCalls);
+
+            code.iget(interceptorField, localInterceptor, localThis);
+            code.loadConstant(nullInterceptor, null);
+
+            // Interceptor is not null, call it.
+            code.compare(Comparison.EQ, superCase, nullInterceptor, localInterceptor);
+            code.invokeVirtual(onLayoutMethod, null, localInterceptor, localThis, localChanged,
+                    localLeft, localTop, localRight, localBottom);
+            code.returnVoid();
+
+            // Interceptor is null or skipped, call super method.
+            code.mark(superCase);
+            code.invokeSuper(superMethod, null, localThis, localChanged, localLeft, localTop,
+                    localRight, localBottom);
+            code.returnVoid();
+        }
 
         final MethodId<G, Void> callsSuperMethod = generatedType.getMethod(VOID_TYPE,
                 ViewMethod.ON_LAYOUT.getInvokeName(), TypeId.BOOLEAN, TypeId.INT, TypeId.INT,
@@ -240,7 +298,8 @@ final class DexProxyBuilder {
     private static <T, G extends T> void generateDrawMethod(DexMaker dexMaker,
                                                             TypeId<G> generatedType,
                                                             TypeId<T> baseType,
-                                                            ViewMethod viewMethod) {
+                                                            ViewMethod viewMethod,
+                                                            boolean intercept) {
         final FieldId<G, Interceptor> interceptorField =
                 generatedType.getField(INTERCEPTOR_TYPE, FIELD_NAME_INTERCEPTOR);
 
@@ -250,27 +309,38 @@ final class DexProxyBuilder {
         final MethodId<Interceptor, Void> drawMethod =
                 INTERCEPTOR_TYPE.getMethod(VOID_TYPE, methodName, VIEW_TYPE, CANVAS_TYPE);
 
-        final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName, CANVAS_TYPE);
-        final Code code = dexMaker.declare(methodId, PUBLIC);
-
-        final Local<G> localThis = code.getThis(generatedType);
-        final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Canvas> localCanvas = code.getParameter(0, CANVAS_TYPE);
-
-        code.iget(interceptorField, localInterceptor, localThis);
-        code.loadConstant(nullInterceptor, null);
-
-        // Interceptor is not null, call it.
-        final Label interceptorNullCase = new Label();
-        code.compare(Comparison.EQ, interceptorNullCase, nullInterceptor, localInterceptor);
-        code.invokeVirtual(drawMethod, null, localInterceptor, localThis, localCanvas);
-        code.returnVoid();
-
-        // Interceptor is null, call super method.
-        code.mark(interceptorNullCase);
-        code.invokeSuper(superMethod, null, localThis, localCanvas);
-        code.returnVoid();
+        if (intercept) {
+            final MethodId<G, Void> methodId = generatedType.getMethod(VOID_TYPE, methodName,
+                    CANVAS_TYPE);
+            final Code code = dexMaker.declare(methodId, PUBLIC);
+
+            final Local<G> localThis = code.getThis(generatedType);
+            final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Boolean> localInterceptCalls = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> falseConstant = code.newLocal(TypeId.BOOLEAN);
+            final Local<Canvas> localCanvas = code.getParameter(0, CANVAS_TYPE);
+
+            final Label superCase = new Label();
+
+            // Calls are not being intercepted, skip the interceptor.
+            code.sget(INTERCEPT_CALLS_FIELD, localInterceptCalls);
+            code.loadConstant(falseConstant, false);
+            code.compare(Comparison.EQ, superCase, falseConstant, localInterceptCalls);
+
+            code.iget(interceptorField, localInterceptor, localThis);
+            code.loadConstant(nullInterceptor, null);
+
+            // Interceptor is not null, call it.
+            code.compare(Comparison.EQ, superCase, nullInterceptor, localInterceptor);
+            code.invokeVirtual(drawMethod, null, localInterceptor, localThis, localCanvas);
+            code.returnVoid();
+
+            // Interceptor is null or skipped, call super method.
+            code.mark(superCase);
+            code.invokeSuper(superMethod, null, localThis, localCanvas);
+            code.returnVoid();
+        }
 
         final MethodId<G, Void> callsSuperMethod =
                 generatedType.getMethod(VOID_TYPE, viewMethod.getInvokeName(), CANVAS_TYPE);
@@ -288,9 +358,12 @@ final class DexProxyBuilder {
      */
     private static <T, G extends T> void generateDrawMethods(DexMaker dexMaker,
                                                              TypeId<G> generatedType,
-                                                             TypeId<T> baseType) {
-        generateDrawMethod(dexMaker, generatedType, baseType, ViewMethod.DRAW);
-        generateDrawMethod(dexMaker, generatedType, baseType, ViewMethod.ON_DRAW);
+                                                             TypeId<T> baseType,
+                                                             int methodMask) {
+        generateDrawMethod(dexMaker, generatedType, baseType, ViewMethod.DRAW,
+                (methodMask & Interceptor.MASK_DRAW) != 0);
+        generateDrawMethod(dexMaker, generatedType, baseType, ViewMethod.ON_DRAW,
+                (methodMask & Interceptor.MASK_ON_DRAW) != 0);
     }
 
     /**
@@ -298,7 +371,8 @@ final class DexProxyBuilder {
      */
     private static <T, G extends T> void generateRequestLayoutMethod(DexMaker dexMaker,
                                                                      TypeId<G> generatedType,
-                                                                     TypeId<T> baseType) {
+                                                                     TypeId<T> baseType,
+                                                                     boolean intercept) {
         final FieldId<G, Interceptor> interceptorField =
                 generatedType.getField(INTERCEPTOR_TYPE, FIELD_NAME_INTERCEPTOR);
 
@@ -308,26 +382,36 @@ final class DexProxyBuilder {
         final MethodId<Interceptor, Void> requestLayoutMethod =
                 INTERCEPTOR_TYPE.getMethod(VOID_TYPE, methodName, VIEW_TYPE);
 
-        final MethodId<?, ?> methodId = generatedType.getMethod(VOID_TYPE, methodName);
-        final Code code = dexMaker.declare(methodId, PUBLIC);
+        if (intercept) {
+            final MethodId<?, ?> methodId = generatedType.getMethod(VOID_TYPE, methodName);
+            final Code code = dexMaker.declare(methodId, PUBLIC);
 
-        final Local<G> localThis = code.getThis(generatedType);
-        final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<G> localThis = code.getThis(generatedType);
+            final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Boolean> localInterceptCalls = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> falseConstant = code.newLocal(TypeId.BOOLEAN);
 
-        code.iget(interceptorField, localInterceptor, localThis);
-        code.loadConstant(nullInterceptor, null);
+            final Label superCase = new Label();
 
-        // Interceptor is not null, call it.
-        final Label interceptorNullCase = new Label();
-        code.compare(Comparison.EQ, interceptorNullCase, nullInterceptor, localInterceptor);
-        code.invokeVirtual(requestLayoutMethod, null, localInterceptor, localThis);
-        code.returnVoid();
+            // Calls are not being intercepted, skip the interceptor.
+            code.sget(INTERCEPT_CALLS_FIELD, localInterceptCalls);
+            code.loadConstant(falseConstant, false);
+            code.compare(Comparison.EQ, superCase, falseConstant, localInterceptCalls);
 
-        // Interceptor is null, call super method.
-        code.mark(interceptorNullCase);
-        code.invokeSuper(superMethod, null, localThis);
-        code.returnVoid();
+            code.iget(interceptorField, localInterceptor, localThis);
+            code.loadConstant(nullInterceptor, null);
+
+            // Interceptor is not null, call it.
+            code.compare(Comparison.EQ, superCase, nullInterceptor, localInterceptor);
+            code.invokeVirtual(requestLayoutMethod, null, localInterceptor, localThis);
+            code.returnVoid();
+
+            // Interceptor is null or skipped, call super method.
+            code.mark(superCase);
+            code.invokeSuper(superMethod, null, localThis);
+            code.returnVoid();
+        }
 
         final MethodId<G, Void> callsSuperMethod =
                 generatedType.getMethod(VOID_TYPE, ViewMethod.REQUEST_LAYOUT.getInvokeName());
@@ -344,7 +428,8 @@ final class DexProxyBuilder {
      */
     private static <T, G extends T> void generateForceLayoutMethod(DexMaker dexMaker,
                                                                    TypeId<G> generatedType,
-                                                                   TypeId<T> baseType) {
+                                                                   TypeId<T> baseType,
+                                                                   boolean intercept) {
         final FieldId<G, Interceptor> interceptorField =
                 generatedType.getField(INTERCEPTOR_TYPE, FIELD_NAME_INTERCEPTOR);
 
@@ -354,26 +439,36 @@ final class DexProxyBuilder {
         final MethodId<Interceptor, Void> forceLayoutMethod =
                 INTERCEPTOR_TYPE.getMethod(VOID_TYPE, methodName, VIEW_TYPE);
 
-        final MethodId<?, ?> methodId = generatedType.getMethod(VOID_TYPE, methodName);
-        final Code code = dexMaker.declare(methodId, PUBLIC);
+        if (intercept) {
+            final MethodId<?, ?> methodId = generatedType.getMethod(VOID_TYPE, methodName);
+            final Code code = dexMaker.declare(methodId, PUBLIC);
 
-        final Local<G> localThis = code.getThis(generatedType);
-        final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
-        final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<G> localThis = code.getThis(generatedType);
+            final Local<Interceptor> nullInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Interceptor> localInterceptor = code.newLocal(INTERCEPTOR_TYPE);
+            final Local<Boolean> localInterceptCalls = code.newLocal(TypeId.BOOLEAN);
+            final Local<Boolean> falseConstant = code.newLocal(TypeId.BOOLEAN);
 
-        code.iget(interceptorField, localInterceptor, localThis);
-        code.loadConstant(nullInterceptor, null);
+            final Label superCase = new Label();
 
-        // Interceptor is not null, call it.
-        final Label interceptorNullCase = new Label();
-        code.compare(Comparison.EQ, interceptorNullCase, nullInterceptor, localInterceptor);
-        code.invokeVirtual(forceLayoutMethod, null, localInterceptor, localThis);
-        code.returnVoid();
+            // Calls are not being intercepted, skip the interceptor.
+            code.sget(INTERCEPT_CALLS_FIELD, localInterceptCalls);
+            code.loadConstant(falseConstant, false);
+            code.compare(Comparison.EQ, superCase, falseConstant, localInterceptCalls);
 
-        // Interceptor is null, call super method.
-        code.mark(interceptorNullCase);
-        code.invokeSuper(superMethod, null, localThis);
-        code.returnVoid();
+            code.iget(interceptorField, localInterceptor, localThis);
+            code.loadConstant(nullInterceptor, null);
+
+            // Interceptor is not null, call it.
+            code.compare(Comparison.EQ, superCase, nullInterceptor, localInterceptor);
+            code.invokeVirtual(forceLayoutMethod, null, localInterceptor, localThis);
+            code.returnVoid();
+
+            // Interceptor is null or skipped, call super method.
+            code.mark(superCase);
+            code.invokeSuper(superMethod, null, localThis);
+            code.returnVoid();
+        }
 
         final MethodId<G, Void> callsSuperMethod =
                 generatedType.getMethod(VOID_TYPE, ViewMethod.FORCE_LAYOUT.getInvokeName());
@@ -432,7 +527,9 @@ final class DexProxyBuilder {
     }
 
     private static <T> String getClassNameForProxyOf(Class<? extends T> clazz) {
-        return clazz.getSimpleName() + "_Proxy";
+        // Use the fully qualified name so that proxies for classes with the
+        // same simple name can live in the same dex file.
+        return clazz.getName().replace('.', '_') + "_Proxy";
     }
 
     private static TypeId<?>[] classArrayToTypeArray(Class<?>[] input) {
@@ -444,42 +541,233 @@ final class DexProxyBuilder {
         return result;
     }
 
+    private static String toHexString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static String sha1(String input) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not be thrown, SHA-1 is always available.
+            throw new AssertionError(e);
+        }
+
+        return toHexString(digest.digest(input.getBytes()));
+    }
+
     /**
-     * Generates dynamic {@link android.view.View} proxy class.
+     * Returns the dex cache directory for the current app and platform builds
+     * and Probe version. The fingerprint changes whenever the app is updated
+     * or reinstalled, in which case cached dex files from previous builds
+     * are deleted.
      */
-    @SuppressWarnings("unchecked")
-    static <T, G extends T> Class<G> generateProxyClass(Context context, Class<T> baseClass)
-            throws IOException {
-        // Cache missed; generate the proxy class.
-        final DexMaker dexMaker = new DexMaker();
+    private static File getDexCache(Context context) {
+        if (sDexCache != null) {
+            return sDexCache;
+        }
+
+        final PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Should not be thrown, the app's own package is always installed.
+            throw new AssertionError(e);
+        }
+
+        final String fingerprint = Build.FINGERPRINT + "/" + packageInfo.versionCode + "/" +
+                packageInfo.lastUpdateTime + "/" + Probe.VERSION;
+
+        final File rootDir = context.getDir(DEX_CACHE_DIRECTORY, Context.MODE_PRIVATE);
+        final File dexCache = new File(rootDir, sha1(fingerprint));
+
+        final File[] staleDirs = rootDir.listFiles();
+        if (staleDirs != null) {
+            for (int i = 0; i < staleDirs.length; i++) {
+                if (!staleDirs[i].equals(dexCache)) {
+                    deleteRecursive(staleDirs[i]);
+                }
+            }
+        }
+
+        if (!dexCache.isDirectory() && !dexCache.mkdirs()) {
+            // Fall back to the root directory, proxies just won't be cached
+            // across different builds.
+            sDexCache = rootDir;
+        } else {
+            sDexCache = dexCache;
+        }
+
+        return sDexCache;
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursive(children[i]);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Writes the given dex contents into a jar file. The file is written
+     * under a temporary name first so that concurrent readers never see
+     * a partially written dex file.
+     */
+    private static void writeDexFile(byte[] dex, File dexFile) throws IOException {
+        final File tmpFile = File.createTempFile(dexFile.getName(), null,
+                dexFile.getParentFile());
+
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmpFile));
+        try {
+            final ZipEntry entry = new ZipEntry(DEX_ENTRY_NAME);
+            entry.setSize(dex.length);
+            out.putNextEntry(entry);
+            out.write(dex);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(dexFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to write dex file " + dexFile);
+        }
+    }
 
+    /**
+     * Declares the proxy class for the given base class in the {@link DexMaker}.
+     */
+    private static <T, G extends T> void declareProxyClass(DexMaker dexMaker,
+                                                           Class<T> baseClass,
+                                                           int methodMask) {
         final String proxyClassName = getClassNameForProxyOf(baseClass);
+
         final TypeId<G> generatedType = TypeId.get("L" + proxyClassName + ";");
         final TypeId<T> baseType = TypeId.get(baseClass);
 
         generateConstructorAndFields(dexMaker, generatedType, baseType);
-        generateOnMeasureMethod(dexMaker, generatedType, baseType);
-        generateOnLayoutMethod(dexMaker, generatedType, baseType);
-        generateDrawMethods(dexMaker, generatedType, baseType);
-        generateRequestLayoutMethod(dexMaker, generatedType, baseType);
-        generateForceLayoutMethod(dexMaker, generatedType, baseType);
+        generateOnMeasureMethod(dexMaker, generatedType, baseType,
+                (methodMask & Interceptor.MASK_ON_MEASURE) != 0);
+        generateOnLayoutMethod(dexMaker, generatedType, baseType,
+                (methodMask & Interceptor.MASK_ON_LAYOUT) != 0);
+        generateDrawMethods(dexMaker, generatedType, baseType, methodMask);
+        generateRequestLayoutMethod(dexMaker, generatedType, baseType,
+                (methodMask & Interceptor.MASK_REQUEST_LAYOUT) != 0);
+        generateForceLayoutMethod(dexMaker, generatedType, baseType,
+                (methodMask & Interceptor.MASK_FORCE_LAYOUT) != 0);
         generateSetMeasuredDimension(dexMaker, generatedType, baseType);
         generateSetInterceptor(dexMaker, generatedType, baseType);
 
         dexMaker.declare(generatedType, proxyClassName + ".generated", PUBLIC, baseType,
                 INTERCEPTABLE_VIEW_TYPE);
+    }
 
-        final ClassLoader classLoader = dexMaker.generateAndLoad(context.getClassLoader(),
-                context.getDir(DEX_CACHE_DIRECTORY, Context.MODE_PRIVATE));
+    /**
+     * Loads the proxy classes for the given base classes from the given dex
+     * file, generating it first if it's not in the dex cache yet.
+     */
+    private static Class<?>[] loadProxyClasses(Context context, Class<?>[] baseClasses,
+                                               int methodMask, File dexFile)
+            throws IOException {
         try {
-            return (Class<G>) classLoader.loadClass(proxyClassName);
+            if (dexFile.exists()) {
+                try {
+                    return loadProxyClasses(context, baseClasses, dexFile, dexFile.getParentFile());
+                } catch (ClassNotFoundException e) {
+                    // Corrupt cache entry, generate the proxy classes again.
+                    dexFile.delete();
+                }
+            }
+
+            // Cache missed; generate the proxy classes in a single dex file.
+            final DexMaker dexMaker = new DexMaker();
+            for (int i = 0; i < baseClasses.length; i++) {
+                declareProxyClass(dexMaker, baseClasses[i], methodMask);
+            }
+
+            writeDexFile(dexMaker.generate(), dexFile);
+
+            return loadProxyClasses(context, baseClasses, dexFile, dexFile.getParentFile());
         } catch (IllegalAccessError e) {
-            // Thrown when the base class is not accessible.
-            throw new UnsupportedOperationException(
-                    "cannot proxy inaccessible class " + baseClass, e);
+            // Thrown when a base class is not accessible.
+            throw new UnsupportedOperationException("cannot proxy inaccessible class", e);
         } catch (ClassNotFoundException e) {
-            // Should not be thrown, we're sure to have generated this class.
+            // Should not be thrown, we're sure to have generated these classes.
             throw new AssertionError(e);
         }
     }
+
+    private static Class<?>[] loadProxyClasses(Context context, Class<?>[] baseClasses,
+                                               File dexFile, File dexCache)
+            throws ClassNotFoundException {
+        final ClassLoader classLoader = new DexClassLoader(dexFile.getPath(),
+                dexCache.getPath(), null, context.getClassLoader());
+
+        final Class<?>[] proxyClasses = new Class<?>[baseClasses.length];
+        for (int i = 0; i < baseClasses.length; i++) {
+            proxyClasses[i] = classLoader.loadClass(getClassNameForProxyOf(baseClasses[i]));
+        }
+
+        return proxyClasses;
+    }
+
+    private static String getMaskSuffix(int methodMask) {
+        return "-" + Integer.toHexString(methodMask);
+    }
+
+    /**
+     * Generates dynamic {@link android.view.View} proxy class, or loads it from
+     * the dex cache if it has been generated before. Only the view methods in
+     * the given mask are overridden by the proxy class, see
+     * {@link Interceptor#getInterceptedMethods()}.
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized <T, G extends T> Class<G> generateProxyClass(Context context,
+                                                                     Class<T> baseClass,
+                                                                     int methodMask)
+            throws IOException {
+        final File dexFile = new File(getDexCache(context), getClassNameForProxyOf(baseClass) +
+                getMaskSuffix(methodMask) + DEX_FILE_EXTENSION);
+
+        final Class<?>[] proxyClasses =
+                loadProxyClasses(context, new Class<?>[] { baseClass }, methodMask, dexFile);
+        return (Class<G>) proxyClasses[0];
+    }
+
+    /**
+     * Generates dynamic {@link android.view.View} proxy classes for all the given
+     * base classes in a single dex file, loaded by a single class loader. The
+     * returned array holds the proxy class for each base class, in the same order.
+     */
+    static synchronized Class<?>[] generateProxyClasses(Context context, Class<?>[] baseClasses,
+                                                        int methodMask) throws IOException {
+        // Key the batch by its sorted class names so that the same set of
+        // classes maps to the same dex file regardless of order.
+        final String[] classNames = new String[baseClasses.length];
+        for (int i = 0; i < baseClasses.length; i++) {
+            classNames[i] = baseClasses[i].getName();
+        }
+        Arrays.sort(classNames);
+
+        final StringBuilder batchKey = new StringBuilder();
+        for (int i = 0; i < classNames.length; i++) {
+            batchKey.append(classNames[i]).append('\n');
+        }
+
+        final File dexFile = new File(getDexCache(context), BATCH_DEX_FILE_PREFIX +
+                sha1(batchKey.toString()) + getMaskSuffix(methodMask) + DEX_FILE_EXTENSION);
+        return loadProxyClasses(context, baseClasses, methodMask, dexFile);
+    }
 }
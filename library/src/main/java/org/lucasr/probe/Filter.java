@@ -21,16 +21,53 @@ import android.content.res.TypedArray;
 import android.util.AttributeSet;
 import android.view.View;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Select which {@link View}s in the hierarchy should direct their
  * method calls to the {@link Probe}'s {@link Interceptor}. You can define
  * a {@link Filter} when creating a new {@link Probe} instance.
  *
+ * <p>Filters are evaluated for every inflated view. Filters composed with
+ * {@link Compose} are flattened when the {@link Probe} is deployed and run
+ * from the cheapest to the most expensive one, according to the inputs
+ * they declare through {@link Inputs}.</p>
+ *
  * @see Probe
  */
 public interface Filter {
     boolean shouldIntercept(Context context, View parent, String name, AttributeSet attrs);
 
+    /**
+     * Optionally implemented by {@link Filter}s to declare which arguments of
+     * {@link Filter#shouldIntercept(Context, View, String, AttributeSet)} they
+     * read. Filters that don't implement it are assumed to read all of them.
+     */
+    public interface Inputs {
+        /** The view's tag name. */
+        int NAME = 1 << 0;
+
+        /** The parent view. */
+        int PARENT = 1 << 1;
+
+        /** The view's attributes. */
+        int ATTRS = 1 << 2;
+
+        /** The target context e.g. to resolve styled attributes. */
+        int CONTEXT = 1 << 3;
+
+        int ALL = NAME | PARENT | ATTRS | CONTEXT;
+
+        /**
+         * Returns a combination of {@link #NAME}, {@link #PARENT}, {@link #ATTRS}
+         * and {@link #CONTEXT}.
+         */
+        int getInputs();
+    }
+
     /**
      * Compose two or more {@link Filter}s.
      */
@@ -45,6 +82,10 @@ public interface Filter {
             mFilters = filters;
         }
 
+        Filter[] getFilters() {
+            return mFilters;
+        }
+
         @Override
         public boolean shouldIntercept(Context context, View parent, String name,
                                        AttributeSet attrs) {
@@ -61,8 +102,11 @@ public interface Filter {
     /**
      * Filter by one or more view IDs.
      */
-    public static class ViewId implements Filter {
-        private static final int[] idAttribute = new int[] {
+    public static class ViewId implements Filter, Inputs {
+        private static final String ANDROID_NAMESPACE =
+                "http://schemas.android.com/apk/res/android";
+        private static final String ID_ATTRIBUTE = "id";
+        private static final int[] ID_STYLED_ATTRIBUTE = new int[] {
             android.R.attr.id
         };
 
@@ -73,29 +117,43 @@ public interface Filter {
         }
 
         public ViewId(int[] viewIds) {
-            mViewIds = viewIds;
+            mViewIds = viewIds.clone();
+            Arrays.sort(mViewIds);
+        }
+
+        @Override
+        public int getInputs() {
+            // Styled IDs are resolved through the context's theme.
+            return ATTRS | CONTEXT;
         }
 
         @Override
         public boolean shouldIntercept(Context context, View parent, String name,
                                        AttributeSet attrs) {
-            final TypedArray a = context.obtainStyledAttributes(attrs, idAttribute);
-            final int viewId = a.getResourceId(0, View.NO_ID);
+            // Read the ID straight from the attribute set, it's much
+            // cheaper than resolving styled attributes.
+            int viewId = attrs.getAttributeResourceValue(ANDROID_NAMESPACE,
+                    ID_ATTRIBUTE, View.NO_ID);
+
+            // The ID might still be set through a style="" attribute.
+            if (viewId == View.NO_ID && attrs.getStyleAttribute() != 0) {
+                final TypedArray a = context.obtainStyledAttributes(attrs, ID_STYLED_ATTRIBUTE);
+                viewId = a.getResourceId(0, View.NO_ID);
+                a.recycle();
+            }
 
-            for (int i = 0; i < mViewIds.length; i++) {
-                if (mViewIds[i] == viewId) {
-                    return true;
-                }
+            if (viewId == View.NO_ID) {
+                return false;
             }
 
-            return false;
+            return Arrays.binarySearch(mViewIds, viewId) >= 0;
         }
     }
 
     /**
      * Filter by one or more parent view IDs.
      */
-    public static class ParentId implements Filter {
+    public static class ParentId implements Filter, Inputs {
         private final int[] mParentIds;
 
         public ParentId(int parentId) {
@@ -103,7 +161,13 @@ public interface Filter {
         }
 
         public ParentId(int[] parentIds) {
-            mParentIds = parentIds;
+            mParentIds = parentIds.clone();
+            Arrays.sort(mParentIds);
+        }
+
+        @Override
+        public int getInputs() {
+            return PARENT;
         }
 
         @Override
@@ -113,47 +177,46 @@ public interface Filter {
                 return false;
             }
 
-            final int parentId = parent.getId();
-
-            for (int i = 0; i < mParentIds.length; i++) {
-                if (mParentIds[i] == parentId) {
-                    return true;
-                }
-            }
-
-            return false;
+            return Arrays.binarySearch(mParentIds, parent.getId()) >= 0;
         }
     }
 
     /**
      * Filter by one or more {@link View} class names.
      */
-    public static class ClassName implements Filter {
-        private final String[] mClassNames;
+    public static class ClassName implements Filter, Inputs {
+        private final Set<String> mClassNames;
+
+        // Results are cached per tag name as they only depend on it.
+        private final ConcurrentHashMap<String, Boolean> mResultsByName;
 
         public ClassName(String className) {
             this(new String[] { className });
         }
 
         public ClassName(String[] classNames) {
-            mClassNames = classNames;
+            mClassNames = new HashSet<String>(Arrays.asList(classNames));
+            mResultsByName = new ConcurrentHashMap<String, Boolean>();
+        }
+
+        @Override
+        public int getInputs() {
+            return NAME;
         }
 
         @Override
         public boolean shouldIntercept(Context context, View parent, String name,
                                        AttributeSet attrs) {
-            int dotIndex = name.lastIndexOf('.');
-            if (dotIndex >= 0) {
-                name = name.substring(dotIndex + 1);
-            }
+            Boolean result = mResultsByName.get(name);
+            if (result == null) {
+                final int dotIndex = name.lastIndexOf('.');
+                final String simpleName = (dotIndex >= 0 ? name.substring(dotIndex + 1) : name);
 
-            for (int i = 0; i < mClassNames.length; i++) {
-                if (name.equals(mClassNames[i])) {
-                    return true;
-                }
+                result = Boolean.valueOf(mClassNames.contains(simpleName));
+                mResultsByName.put(name, result);
             }
 
-            return false;
+            return result;
         }
     }
 }
@@ -20,6 +20,9 @@ import android.graphics.Canvas;
 import android.util.Log;
 import android.view.View;
 
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Observe and override method calls on views inflated by a {@link Probe}. You
  * must provide an {@link Interceptor} instance when creating a new {@link Probe}.
@@ -42,8 +45,71 @@ import android.view.View;
  *
  * An {@link Interceptor} can also be used to track and benchmark the behaviour of
  * specific views in your Android UI.
+ *
+ * <p>Use a {@link CompositeInterceptor} to deploy more than one {@link Interceptor}
+ * at once.</p>
  */
 public class Interceptor {
+    // View methods that can be intercepted, see getInterceptedMethods().
+    static final int MASK_ON_MEASURE = 1 << 0;
+    static final int MASK_ON_LAYOUT = 1 << 1;
+    static final int MASK_DRAW = 1 << 2;
+    static final int MASK_ON_DRAW = 1 << 3;
+    static final int MASK_REQUEST_LAYOUT = 1 << 4;
+    static final int MASK_FORCE_LAYOUT = 1 << 5;
+    static final int MASK_ALL = (1 << 6) - 1;
+
+    private static final String[] METHOD_NAMES = {
+        "onMeasure", "onLayout", "draw", "onDraw", "requestLayout", "forceLayout"
+    };
+
+    private static final Class<?>[][] METHOD_PARAMETER_TYPES = {
+        { View.class, int.class, int.class },
+        { View.class, boolean.class, int.class, int.class, int.class, int.class },
+        { View.class, Canvas.class },
+        { View.class, Canvas.class },
+        { View.class },
+        { View.class }
+    };
+
+    private static final ConcurrentHashMap<Class<?>, Integer> sInterceptedMethods =
+            new ConcurrentHashMap<Class<?>, Integer>();
+
+    // Next interceptor in a CompositeInterceptor chain, if any.
+    Interceptor mNext;
+    boolean mComposed;
+
+    /**
+     * Returns the mask of view methods this interceptor overrides. Proxies only
+     * override these methods, calls to all other methods go straight to the
+     * base view class.
+     */
+    int getInterceptedMethods() {
+        final Class<?> interceptorClass = getClass();
+
+        final Integer cachedMask = sInterceptedMethods.get(interceptorClass);
+        if (cachedMask != null) {
+            return cachedMask;
+        }
+
+        int mask = 0;
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            Class<?> clazz = interceptorClass;
+            while (clazz != Interceptor.class) {
+                try {
+                    clazz.getDeclaredMethod(METHOD_NAMES[i], METHOD_PARAMETER_TYPES[i]);
+                    mask |= (1 << i);
+                    break;
+                } catch (NoSuchMethodException e) {
+                    clazz = clazz.getSuperclass();
+                }
+            }
+        }
+
+        sInterceptedMethods.put(interceptorClass, mask);
+        return mask;
+    }
+
     /**
      * Intercepts an {@link View#onMeasure(int, int)} call on the given {@link View}.
      * By default, it simply calls the view's original method.
@@ -56,6 +122,11 @@ public class Interceptor {
      * Performs a {@link View#onMeasure(int, int)} call on the given {@link View}.
      */
     protected final void invokeOnMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        if (mNext != null) {
+            mNext.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeOnMeasure(widthMeasureSpec, heightMeasureSpec);
     }
@@ -73,6 +144,11 @@ public class Interceptor {
      * given {@link View}.
      */
     protected final void invokeOnLayout(View view, boolean changed, int l, int t, int r, int b) {
+        if (mNext != null) {
+            mNext.onLayout(view, changed, l, t, r, b);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeOnLayout(changed, l, t, r, b);
     }
@@ -89,6 +165,11 @@ public class Interceptor {
      * Performs a {@link View#draw(Canvas)} call on the given {@link View}.
      */
     protected final void invokeDraw(View view, Canvas canvas) {
+        if (mNext != null) {
+            mNext.draw(view, canvas);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeDraw(canvas);
     }
@@ -105,6 +186,11 @@ public class Interceptor {
      * Performs an {@link View#onDraw(Canvas)} call on the given {@link View}.
      */
     protected final void invokeOnDraw(View view, Canvas canvas) {
+        if (mNext != null) {
+            mNext.onDraw(view, canvas);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeOnDraw(canvas);
     }
@@ -121,6 +207,11 @@ public class Interceptor {
      * Performs a {@link View#requestLayout()} call on the given {@link View}.
      */
     protected final void invokeRequestLayout(View view) {
+        if (mNext != null) {
+            mNext.requestLayout(view);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeRequestLayout();
     }
@@ -137,6 +228,11 @@ public class Interceptor {
      * Performs a {@link View#forceLayout()} call on the given {@link View}.
      */
     protected final void invokeForceLayout(View view) {
+        if (mNext != null) {
+            mNext.forceLayout(view);
+            return;
+        }
+
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeForceLayout();
     }
@@ -150,4 +246,11 @@ public class Interceptor {
         final ViewProxy proxy = (ViewProxy) view;
         proxy.invokeSetMeasuredDimension(width, height);
     }
+
+    /**
+     * Writes the statistics collected by this interceptor, if any, as part of
+     * {@link Probe#dumpStats(java.io.Writer)}. Does nothing by default.
+     */
+    public void dumpStats(PrintWriter writer) {
+    }
 }
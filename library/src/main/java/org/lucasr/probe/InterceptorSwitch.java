@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.graphics.Canvas;
+import android.view.View;
+
+/**
+ * The {@link Interceptor} actually set on the proxies inflated by a {@link Probe}.
+ * It forwards all calls to the {@link Probe}'s current {@link Interceptor}, or
+ * straight to the views' original methods while the {@link Probe} is paused.
+ *
+ * <p>If the {@link Probe} has a {@link SamplingPolicy}, calls outside the sampled
+ * traversals also go straight to the views' original methods. Only the first
+ * calls of a skipped frame get here: once every {@link InterceptorSwitch} skips
+ * the frame, {@link TraversalMonitor#sInterceptCalls} is cleared and the
+ * proxies call their base class' methods without going through the
+ * {@link InterceptorSwitch} until the frame ends. The same goes for paused
+ * {@link Probe}s, which is why resuming only takes effect from the next frame.
+ * Other windows traversed in the same frame share the first traversal's
+ * decision.</p>
+ *
+ * <p>As every proxy points to the same {@link InterceptorSwitch}, pausing,
+ * resuming or swapping interceptors takes effect on all live views without
+ * walking or re-inflating the view hierarchies.</p>
+ */
+final class InterceptorSwitch extends Interceptor {
+    private volatile Interceptor mTarget;
+    private volatile boolean mPaused;
+    private final Sampler mSampler;
+    private final TraversalMonitor mMonitor;
+
+    InterceptorSwitch(Interceptor target, boolean paused, Sampler sampler) {
+        mTarget = target;
+        mPaused = paused;
+        mSampler = sampler;
+        mMonitor = TraversalMonitor.getInstance();
+        mMonitor.addCallFilter();
+    }
+
+    Interceptor getTarget() {
+        return mTarget;
+    }
+
+    void setTarget(Interceptor target) {
+        mTarget = target;
+    }
+
+    boolean isPaused() {
+        return mPaused;
+    }
+
+    void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    private boolean shouldSkip(View view) {
+        if (mPaused) {
+            // Makes sure the traversal is known so that it can be skipped.
+            mMonitor.onViewCall(view);
+        } else if (mSampler == null || mSampler.isSampled(view)) {
+            return false;
+        }
+
+        mMonitor.skipFrame(this);
+        return true;
+    }
+
+    private boolean shouldSkip() {
+        return mPaused || (mSampler != null && !mSampler.isSampled());
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        if (shouldSkip(view)) {
+            ((ViewProxy) view).invokeOnMeasure(widthMeasureSpec, heightMeasureSpec);
+        } else {
+            mTarget.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        if (shouldSkip(view)) {
+            ((ViewProxy) view).invokeOnLayout(changed, l, t, r, b);
+        } else {
+            mTarget.onLayout(view, changed, l, t, r, b);
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        if (shouldSkip(view)) {
+            ((ViewProxy) view).invokeDraw(canvas);
+        } else {
+            mTarget.draw(view, canvas);
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        if (shouldSkip(view)) {
+            ((ViewProxy) view).invokeOnDraw(canvas);
+        } else {
+            mTarget.onDraw(view, canvas);
+        }
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        if (shouldSkip()) {
+            ((ViewProxy) view).invokeRequestLayout();
+        } else {
+            mTarget.requestLayout(view);
+        }
+    }
+
+    @Override
+    public void forceLayout(View view) {
+        if (shouldSkip()) {
+            ((ViewProxy) view).invokeForceLayout();
+        } else {
+            mTarget.forceLayout(view);
+        }
+    }
+}
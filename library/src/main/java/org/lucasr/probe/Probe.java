@@ -17,11 +17,18 @@
 package org.lucasr.probe;
 
 import android.content.Context;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.lang.reflect.InvocationHandler;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 
 /**
  * Dissect layout traversals on-the-fly.
@@ -60,48 +67,389 @@ import java.lang.reflect.InvocationHandler;
  * inflate your layouts. They should only be used for debugging
  * purposes.</p>
  *
+ * <p>Runtime proxies can be generated ahead of time on a background thread
+ * with {@link #prewarm(Context, Class[])}, before the layouts using them are
+ * inflated.</p>
+ *
+ * <p>Runtime proxies can also be generated asynchronously as views get
+ * inflated, see {@link Builder#asyncProxies(boolean)}.</p>
+ *
+ * <p>Runtime proxies only override the {@link View} methods that the deployed
+ * {@link Interceptor} overrides, calls to all other methods don't go through
+ * the proxy at all. Build-time proxies override the methods configured in
+ * Probe's Gradle plugin, all of them by default.</p>
+ *
+ * <h2>Pausing and swapping interceptors</h2>
+ * <p>A deployed {@link Probe} can be paused with {@link #pause()}, in which case
+ * all of its views call their original methods directly until {@link #resume()}
+ * is called. Use {@link #swapInterceptor(Interceptor)} to replace the deployed
+ * {@link Interceptor} on all of its views. This applies to views that are already
+ * inflated, there's no need to recreate the target {@link Context}'s views.
+ * For example:</p>
+ * <pre>
+ * Probe.from(activity).swapInterceptor(new TimingInterceptor());
+ * </pre>
+ *
+ * <h2>Sampling</h2>
+ * <p>Deploy a {@link Probe} with a {@link SamplingPolicy} to only intercept
+ * some view classes or layout traversals, see
+ * {@link Builder#samplingPolicy(SamplingPolicy)}. The policy can then be replaced
+ * at runtime through the {@code debug.probe.sampling} system property.</p>
+ *
+ * <h2>Stats</h2>
+ * <p>{@link #dumpStats(Writer)} writes the statistics collected by the interceptors
+ * of all deployed {@link Probe}s, e.g. by a
+ * {@link org.lucasr.probe.interceptors.StatsInterceptor}. Call
+ * {@link #registerStatsReceiver(Context)} to trigger dumps with adb:</p>
+ * <pre>
+ * adb shell am broadcast -a org.lucasr.probe.DUMP_STATS
+ * </pre>
+ *
  * @see #deploy(Context,Interceptor)
  * @see #deploy(Context,Interceptor,Filter)
+ * @see Builder
  * @see Interceptor
  * @see Filter
  */
 public class Probe {
-    private final Interceptor mInterceptor;
+    static final String VERSION = BuildConfig.PROBE_VERSION;
+
+    /**
+     * Broadcast action that dumps the stats of all deployed {@link Probe}s, see
+     * {@link #registerStatsReceiver(Context)}.
+     */
+    public static final String ACTION_DUMP_STATS = "org.lucasr.probe.DUMP_STATS";
+
+    /**
+     * Optional {@link #ACTION_DUMP_STATS} extra with the name of the file to write
+     * the stats to, in the {@code probe-stats} subdirectory of the app's private
+     * files directory. Stats are logged if it's not set.
+     */
+    public static final String EXTRA_FILE_NAME = "file";
+
+    private static final String TAG = "Probe";
+
+    private static final List<WeakReference<Probe>> sDeployedProbes =
+            new ArrayList<WeakReference<Probe>>();
+    private static StatsDumpReceiver sStatsReceiver;
+
+    private final String mContextName;
+    private final InterceptorSwitch mInterceptor;
+    private final Sampler mSampler;
+    private final int mMethodMask;
     private final Filter mFilter;
+    private final boolean mAsyncProxies;
+    private final OnProxiesReadyListener mOnProxiesReadyListener;
 
-    private Probe(Context context, Interceptor interceptor, Filter filter) {
-        if (context == null) {
+    private Probe(Builder builder) {
+        if (builder.mContext == null) {
             throw new IllegalArgumentException("Context should not be null.");
         }
 
-        if (interceptor == null) {
+        if (builder.mInterceptor == null) {
             throw new IllegalArgumentException("Interceptor should not be null.");
         }
 
-        mInterceptor = interceptor;
-        mFilter = filter;
+        mContextName = builder.mContext.getClass().getName();
+        mSampler = (builder.mSamplingPolicy != null ? new Sampler(builder.mSamplingPolicy) : null);
+        mInterceptor = new InterceptorSwitch(builder.mInterceptor, builder.mPaused, mSampler);
+        mMethodMask = builder.mInterceptor.getInterceptedMethods();
+        mFilter = CompiledFilter.compile(builder.mFilter);
+        mAsyncProxies = builder.mAsyncProxies;
+        mOnProxiesReadyListener = builder.mOnProxiesReadyListener;
     }
 
     Interceptor getInterceptor() {
         return mInterceptor;
     }
 
+    int getMethodMask() {
+        return mMethodMask;
+    }
+
     Filter getFilter() {
         return mFilter;
     }
 
+    boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+        return (mSampler == null || mSampler.shouldSampleViewClass(viewClass));
+    }
+
+    boolean getAsyncProxies() {
+        return mAsyncProxies;
+    }
+
+    OnProxiesReadyListener getOnProxiesReadyListener() {
+        return mOnProxiesReadyListener;
+    }
+
+    /**
+     * Stops intercepting method calls on the views inflated by this {@link Probe}.
+     * Views will call their original methods directly until {@link #resume()}
+     * is called.
+     */
+    public void pause() {
+        mInterceptor.setPaused(true);
+    }
+
+    /**
+     * Resumes intercepting method calls on the views inflated by this {@link Probe}.
+     */
+    public void resume() {
+        mInterceptor.setPaused(false);
+    }
+
+    public boolean isPaused() {
+        return mInterceptor.isPaused();
+    }
+
+    /**
+     * Replaces the deployed {@link Interceptor} on all the views inflated by this
+     * {@link Probe}, including the ones that have already been inflated.
+     *
+     * <p>Runtime proxies only override the view methods overridden by the
+     * {@link Interceptor} originally deployed. Methods only overridden by the new
+     * {@link Interceptor} won't be intercepted.</p>
+     */
+    public void swapInterceptor(Interceptor interceptor) {
+        if (interceptor == null) {
+            throw new IllegalArgumentException("Interceptor should not be null.");
+        }
+
+        if ((interceptor.getInterceptedMethods() & ~mMethodMask) != 0) {
+            Log.w(TAG, interceptor.getClass().getName() + " overrides view methods " +
+                    "not intercepted by the deployed proxies.");
+        }
+
+        mInterceptor.setTarget(interceptor);
+    }
+
+    /**
+     * Returns the {@link Interceptor} currently deployed by this {@link Probe}.
+     */
+    public Interceptor getDeployedInterceptor() {
+        return mInterceptor.getTarget();
+    }
+
+    /**
+     * Writes the stats collected by the interceptors of all deployed
+     * {@link Probe}s.
+     *
+     * @see Interceptor#dumpStats(PrintWriter)
+     */
+    public static void dumpStats(Writer writer) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Writer should not be null.");
+        }
+
+        final PrintWriter printWriter = new PrintWriter(writer);
+
+        synchronized (sDeployedProbes) {
+            final Iterator<WeakReference<Probe>> iterator = sDeployedProbes.iterator();
+            while (iterator.hasNext()) {
+                final Probe probe = iterator.next().get();
+                if (probe == null) {
+                    iterator.remove();
+                    continue;
+                }
+
+                printWriter.println("Probe in " + probe.mContextName + " (" +
+                        probe.getDeployedInterceptor().getClass().getName() + "):");
+                probe.getDeployedInterceptor().dumpStats(printWriter);
+            }
+        }
+
+        printWriter.flush();
+    }
+
+    /**
+     * Registers a receiver for {@link #ACTION_DUMP_STATS} broadcasts in the given
+     * {@link Context}'s application. Meant for debugging, stats are only written
+     * to logcat or to the app's private files directory. Only senders holding the
+     * {@code android.permission.DUMP} permission, such as {@code adb shell}, can
+     * trigger dumps.
+     */
+    public static void registerStatsReceiver(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context should not be null.");
+        }
+
+        synchronized (sDeployedProbes) {
+            if (sStatsReceiver != null) {
+                return;
+            }
+
+            sStatsReceiver = new StatsDumpReceiver();
+        }
+
+        StatsDumpReceiver.register(context.getApplicationContext(), sStatsReceiver);
+    }
+
+    /**
+     * Returns the {@link Probe} deployed in the given {@link Context}, or
+     * {@code null} if there's none.
+     */
+    public static Probe from(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context should not be null.");
+        }
+
+        final LayoutInflater.Factory2 factory = LayoutInflater.from(context).getFactory2();
+        if (factory instanceof ProbeViewFactory) {
+            return ((ProbeViewFactory) factory).getProbe();
+        }
+
+        return null;
+    }
+
     /**
      * Deploy an {@link Interceptor} in the given {@link Context}.
      */
-    public static void deploy(Context context, Interceptor interceptor) {
-        deploy(context, interceptor, null);
+    public static Probe deploy(Context context, Interceptor interceptor) {
+        return deploy(context, interceptor, null);
     }
 
     /**
      * Deploy an {@link Interceptor} in the given {@link Context} with a {@link Filter}.
      */
-    public static void deploy(Context context, Interceptor interceptor, Filter filter) {
-        final Probe probe = new Probe(context, interceptor, filter);
-        LayoutInflater.from(context).setFactory2(new ProbeViewFactory(context, probe));
+    public static Probe deploy(Context context, Interceptor interceptor, Filter filter) {
+        return new Builder(context)
+                .interceptor(interceptor)
+                .filter(filter)
+                .deploy();
+    }
+
+    /**
+     * Generates runtime proxies for the given {@link View} classes on a background
+     * thread. All proxies are generated in a single pass and loaded by a single
+     * class loader. Classes with build-time proxies are skipped.
+     */
+    public static void prewarm(Context context, Class<? extends View>... viewClasses) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context should not be null.");
+        }
+
+        AsyncProxyGenerator.prewarm(context, viewClasses);
+    }
+
+    /**
+     * Generates runtime proxies on a background thread for all {@link View} classes
+     * referenced in your layout resources, as listed by Probe's Gradle plugin when
+     * build-time proxies are disabled.
+     */
+    public static void prewarm(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context should not be null.");
+        }
+
+        AsyncProxyGenerator.prewarm(context);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when all runtime proxies
+     * requested in asynchronous mode have been generated.
+     *
+     * @see Builder#asyncProxies(boolean)
+     */
+    public interface OnProxiesReadyListener {
+        /**
+         * Called on the UI thread when there are no more pending proxy classes.
+         */
+        void onProxiesReady();
+    }
+
+    /**
+     * Configures and deploys a {@link Probe}. For example:
+     * <pre>
+     * new Probe.Builder(this)
+     *         .interceptor(new MyInterceptor())
+     *         .filter(new Filter.ViewId(R.id.view2))
+     *         .asyncProxies(true)
+     *         .deploy();
+     * </pre>
+     */
+    public static class Builder {
+        private final Context mContext;
+        private Interceptor mInterceptor;
+        private Filter mFilter;
+        private boolean mAsyncProxies;
+        private boolean mPaused;
+        private SamplingPolicy mSamplingPolicy;
+        private OnProxiesReadyListener mOnProxiesReadyListener;
+
+        public Builder(Context context) {
+            mContext = context;
+        }
+
+        /**
+         * Sets the {@link Interceptor} to be deployed.
+         */
+        public Builder interceptor(Interceptor interceptor) {
+            mInterceptor = interceptor;
+            return this;
+        }
+
+        /**
+         * Sets an (optional) {@link Filter} to select which views are intercepted.
+         */
+        public Builder filter(Filter filter) {
+            mFilter = filter;
+            return this;
+        }
+
+        /**
+         * Generate runtime proxies on a background thread instead of blocking
+         * inflation. Views whose proxy class is not ready yet are inflated as
+         * usual, without being intercepted. Later inflations will use the proxy
+         * class once it's ready.
+         */
+        public Builder asyncProxies(boolean asyncProxies) {
+            mAsyncProxies = asyncProxies;
+            return this;
+        }
+
+        /**
+         * Deploys the {@link Probe} in paused state. Views are still inflated as
+         * proxies but their method calls are only intercepted once
+         * {@link Probe#resume()} is called.
+         */
+        public Builder paused(boolean paused) {
+            mPaused = paused;
+            return this;
+        }
+
+        /**
+         * Sets a {@link SamplingPolicy} to only intercept some view classes or
+         * layout traversals. Deploying with a policy, even
+         * {@link SamplingPolicy#all()}, also allows replacing it at runtime
+         * through the {@code debug.probe.sampling} system property.
+         */
+        public Builder samplingPolicy(SamplingPolicy policy) {
+            mSamplingPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets a callback to be invoked when all the proxy classes requested
+         * in asynchronous mode are ready.
+         */
+        public Builder onProxiesReady(OnProxiesReadyListener listener) {
+            mOnProxiesReadyListener = listener;
+            return this;
+        }
+
+        /**
+         * Deploys the configured {@link Interceptor} in the target {@link Context}.
+         */
+        public Probe deploy() {
+            final Probe probe = new Probe(this);
+            LayoutInflater.from(mContext).setFactory2(new ProbeViewFactory(mContext, probe));
+
+            synchronized (sDeployedProbes) {
+                sDeployedProbes.add(new WeakReference<Probe>(probe));
+            }
+
+            return probe;
+        }
     }
 }
@@ -22,9 +22,10 @@ import android.view.LayoutInflater;
 import android.view.View;
 
 import java.io.IOException;
-import java.lang.reflect.Modifier;
 
+import static org.lucasr.probe.ViewClassUtil.canProxyViewClass;
 import static org.lucasr.probe.ViewClassUtil.findViewClass;
+import static org.lucasr.probe.ViewClassUtil.loadProxyFactory;
 
 /**
  * {@link LayoutInflater.Factory2} used by a {@link Probe} instance to
@@ -42,30 +43,50 @@ class ProbeViewFactory implements LayoutInflater.Factory2 {
 
     private final Context mContext;
     private final Probe mProbe;
+    private final ViewProxyFactory mProxyFactory;
 
     ProbeViewFactory(Context context, Probe probe) {
         mContext = context;
         mProbe = probe;
+        mProxyFactory = loadProxyFactory(context);
     }
 
-    private View createProxyView(Context context, String name, AttributeSet attrs)
-            throws ClassNotFoundException {
+    Probe getProbe() {
+        return mProbe;
+    }
+
+    private View createProxyView(Context context, String name, AttributeSet attrs) {
         try {
             final Class<?> viewClass = findViewClass(mContext, name);
 
-            // Probe can't wrap final or abstract View classes, just bail.
-            final int modifiers = viewClass.getModifiers();
-            if (Modifier.isFinal(modifiers) || Modifier.isAbstract(modifiers)) {
+            // Not a View class or Probe can't wrap it, just bail.
+            if (viewClass == null || !canProxyViewClass(viewClass)) {
+                return null;
+            }
+
+            // Views of classes outside the sample are not intercepted at all.
+            if (!mProbe.shouldSampleViewClass(viewClass.asSubclass(View.class))) {
                 return null;
             }
 
-            return ViewProxyBuilder.forClass(context, viewClass)
-                    .constructorArgValues(mContext, attrs)
+            final boolean asyncProxies = mProbe.getAsyncProxies();
+
+            final View view = ViewProxyBuilder.forClass(context, viewClass)
+                    .constructorArgValues(context, attrs)
+                    .proxyFactory(mProxyFactory)
                     .interceptor(mProbe.getInterceptor())
+                    .methodMask(mProbe.getMethodMask())
+                    .allowProxyGeneration(!asyncProxies)
                     .build();
-        } catch (ClassCastException e) {
-            // Not a View subclass, just bail.
-            return null;
+
+            if (view == null && asyncProxies) {
+                // Inflate the original view for now, the proxy will be
+                // used once it has been generated in the background.
+                AsyncProxyGenerator.requestProxyClass(mContext, viewClass,
+                        mProbe.getMethodMask(), mProbe.getOnProxiesReadyListener());
+            }
+
+            return view;
         } catch (IOException e) {
             throw new IllegalStateException("Failed to create View proxy", e);
         }
@@ -83,11 +104,7 @@ class ProbeViewFactory implements LayoutInflater.Factory2 {
 
         // Proxy the whole view tree if filter is undefined.
         if (filter == null || filter.shouldIntercept(mContext, parent, name, attrs)) {
-            try {
-                return createProxyView(context, name, attrs);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+            return createProxyView(context, name, attrs);
         }
 
         return null;
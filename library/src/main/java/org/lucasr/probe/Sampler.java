@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.util.Log;
+import android.view.View;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Applies a {@link Probe}'s {@link SamplingPolicy}. The policy is replaced by
+ * the one set in the {@link #PROPERTY} system property, if any, which is checked
+ * at most once per {@link #PROPERTY_CHECK_INTERVAL_NANOS} as traversals start
+ * and views get inflated.
+ *
+ * <p>{@link #shouldSampleViewClass(Class)} can be called from any thread, as
+ * layouts might be inflated in the background. The traversal methods should
+ * only be called from the UI thread.</p>
+ */
+final class Sampler {
+    static final String PROPERTY = "debug.probe.sampling";
+
+    private static final String TAG = "Probe";
+
+    private static final long PROPERTY_CHECK_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+    private static Method sGetPropertyMethod;
+    private static boolean sGetPropertyMethodLoaded;
+
+    private final SamplingPolicy mDefaultPolicy;
+    private final TraversalMonitor mMonitor;
+
+    // Replaced from any thread in checkProperty(), read without locking.
+    private volatile SamplingPolicy mPolicy;
+
+    // Guarded by this.
+    private String mPropertyValue;
+    private long mLastPropertyCheckTime;
+    private boolean mPropertyChecked;
+
+    // Only accessed from the UI thread.
+    private int mTraversal;
+    private boolean mSampled;
+
+    Sampler(SamplingPolicy policy) {
+        mDefaultPolicy = policy;
+        mPolicy = policy;
+        mMonitor = TraversalMonitor.getInstance();
+        mSampled = true;
+    }
+
+    boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+        checkProperty(System.nanoTime());
+        return mPolicy.shouldSampleViewClass(viewClass);
+    }
+
+    /**
+     * Returns whether the current traversal of the given view is sampled,
+     * deciding it if the view's call starts a new traversal. Calls on views
+     * outside any traversal e.g. detached ones keep the last decision.
+     */
+    boolean isSampled(View view) {
+        final int traversal = mMonitor.onViewCall(view);
+        if (traversal != TraversalMonitor.NO_TRAVERSAL && traversal != mTraversal) {
+            mTraversal = traversal;
+
+            final long now = System.nanoTime();
+            checkProperty(now);
+            mSampled = mPolicy.shouldSampleTraversal(traversal, now);
+        }
+
+        return mSampled;
+    }
+
+    /**
+     * Returns whether the last traversal was sampled. Used for calls that
+     * don't start traversals, such as {@link View#requestLayout()}.
+     */
+    boolean isSampled() {
+        return mSampled;
+    }
+
+    private synchronized void checkProperty(long now) {
+        if (mPropertyChecked && now - mLastPropertyCheckTime < PROPERTY_CHECK_INTERVAL_NANOS) {
+            return;
+        }
+
+        mPropertyChecked = true;
+        mLastPropertyCheckTime = now;
+
+        final String value = getProperty(PROPERTY);
+        if (value == null ? mPropertyValue == null : value.equals(mPropertyValue)) {
+            return;
+        }
+
+        mPropertyValue = value;
+
+        if (value == null) {
+            mPolicy = mDefaultPolicy;
+            return;
+        }
+
+        try {
+            mPolicy = SamplingPolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring " + PROPERTY + ": " + e.getMessage());
+            mPolicy = mDefaultPolicy;
+        }
+    }
+
+    /**
+     * Returns the value of the given system property, or {@code null} if
+     * it's not set.
+     */
+    private static String getProperty(String name) {
+        final Method getPropertyMethod = getGetPropertyMethod();
+
+        String value = null;
+        if (getPropertyMethod != null) {
+            try {
+                value = (String) getPropertyMethod.invoke(null, name);
+            } catch (IllegalAccessException e) {
+                // Treat as unset.
+            } catch (InvocationTargetException e) {
+                // Treat as unset.
+            }
+        } else {
+            value = System.getProperty(name);
+        }
+
+        return (value == null || value.length() == 0 ? null : value.trim());
+    }
+
+    private static synchronized Method getGetPropertyMethod() {
+        if (!sGetPropertyMethodLoaded) {
+            sGetPropertyMethodLoaded = true;
+            try {
+                final Class<?> systemProperties = Class.forName("android.os.SystemProperties");
+                sGetPropertyMethod = systemProperties.getMethod("get", String.class);
+            } catch (ClassNotFoundException e) {
+                // Not available, fall through.
+            } catch (NoSuchMethodException e) {
+                // Not available, fall through.
+            }
+        }
+
+        return sGetPropertyMethod;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.view.View;
+
+import java.util.Random;
+
+/**
+ * Decides which views and layout traversals are intercepted by a {@link Probe},
+ * to keep the instrumentation overhead low enough for dogfood and production
+ * builds. For example:
+ * <pre>
+ * new Probe.Builder(this)
+ *         .interceptor(new JankInterceptor())
+ *         .samplingPolicy(SamplingPolicy.everyNthTraversal(10))
+ *         .deploy();
+ * </pre>
+ *
+ * <p>View classes are sampled at inflation time: views of classes outside the
+ * sample are inflated as usual, without a proxy. Traversals are sampled as they
+ * start, as detected by {@link TraversalMonitor}. Outside sampled traversals,
+ * proxies call the views' original methods directly.</p>
+ *
+ * <p>Policies can also be described with a spec string, see
+ * {@link #parse(String)}. The spec set in the {@code debug.probe.sampling}
+ * system property replaces the deployed policy at runtime, e.g.
+ * {@code adb shell setprop debug.probe.sampling traversals:10}.</p>
+ */
+public abstract class SamplingPolicy {
+    /**
+     * Returns whether views of the given class should be intercepted. Only
+     * affects views inflated after the policy is in place.
+     */
+    public boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+        return true;
+    }
+
+    /**
+     * Returns whether the given traversal should be intercepted.
+     *
+     * @param traversal the traversal number, see {@link TraversalMonitor#onViewCall(View)}.
+     * @param timeNanos the traversal's start time, as returned by {@link System#nanoTime()}.
+     */
+    public boolean shouldSampleTraversal(int traversal, long timeNanos) {
+        return true;
+    }
+
+    /**
+     * Intercepts all views and traversals.
+     */
+    public static SamplingPolicy all() {
+        return new SamplingPolicy() {
+        };
+    }
+
+    /**
+     * Doesn't intercept anything.
+     */
+    public static SamplingPolicy none() {
+        return new SamplingPolicy() {
+            @Override
+            public boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+                return false;
+            }
+
+            @Override
+            public boolean shouldSampleTraversal(int traversal, long timeNanos) {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Intercepts one in every {@code n} layout traversals.
+     */
+    public static SamplingPolicy everyNthTraversal(final int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Traversal interval should be positive.");
+        }
+
+        return new SamplingPolicy() {
+            @Override
+            public boolean shouldSampleTraversal(int traversal, long timeNanos) {
+                return traversal % n == 0;
+            }
+        };
+    }
+
+    /**
+     * Intercepts the traversals that start within the first {@code activeMillis}
+     * of every {@code periodMillis}.
+     */
+    public static SamplingPolicy dutyCycle(long activeMillis, long periodMillis) {
+        if (periodMillis <= 0 || activeMillis < 0 || activeMillis > periodMillis) {
+            throw new IllegalArgumentException("Invalid duty cycle: " + activeMillis + "/" +
+                    periodMillis);
+        }
+
+        final long activeNanos = activeMillis * 1000000L;
+        final long periodNanos = periodMillis * 1000000L;
+
+        return new SamplingPolicy() {
+            @Override
+            public boolean shouldSampleTraversal(int traversal, long timeNanos) {
+                return (timeNanos % periodNanos + periodNanos) % periodNanos < activeNanos;
+            }
+        };
+    }
+
+    /**
+     * Intercepts views from roughly one in every {@code n} view classes,
+     * selected by class name hash. The selection changes from process to
+     * process so that all classes get covered across devices.
+     */
+    public static SamplingPolicy viewClasses(final int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("View class interval should be positive.");
+        }
+
+        final int salt = new Random().nextInt();
+
+        return new SamplingPolicy() {
+            @Override
+            public boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+                final int hash = (viewClass.getName().hashCode() ^ salt) * 0x9e3779b9;
+                return ((hash >>> 1) % n) == 0;
+            }
+        };
+    }
+
+    /**
+     * Intercepts the views and traversals sampled by all the given policies.
+     */
+    public static SamplingPolicy allOf(final SamplingPolicy... policies) {
+        for (int i = 0; i < policies.length; i++) {
+            if (policies[i] == null) {
+                throw new IllegalArgumentException("Policy should not be null.");
+            }
+        }
+
+        return new SamplingPolicy() {
+            @Override
+            public boolean shouldSampleViewClass(Class<? extends View> viewClass) {
+                for (int i = 0; i < policies.length; i++) {
+                    if (!policies[i].shouldSampleViewClass(viewClass)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public boolean shouldSampleTraversal(int traversal, long timeNanos) {
+                for (int i = 0; i < policies.length; i++) {
+                    if (!policies[i].shouldSampleTraversal(traversal, timeNanos)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Parses a policy spec. Specs are comma separated lists of:
+     * <ul>
+     *     <li>{@code all} or {@code none}</li>
+     *     <li>{@code traversals:N}, see {@link #everyNthTraversal(int)}</li>
+     *     <li>{@code duty:ACTIVE/PERIOD}, in milliseconds, see
+     *     {@link #dutyCycle(long, long)}</li>
+     *     <li>{@code classes:N}, see {@link #viewClasses(int)}</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if the spec is invalid.
+     */
+    public static SamplingPolicy parse(String spec) {
+        if (spec == null) {
+            throw new IllegalArgumentException("Spec should not be null.");
+        }
+
+        final String[] parts = spec.split(",");
+        final SamplingPolicy[] policies = new SamplingPolicy[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            policies[i] = parsePart(parts[i].trim());
+        }
+
+        return (policies.length == 1 ? policies[0] : allOf(policies));
+    }
+
+    private static SamplingPolicy parsePart(String part) {
+        try {
+            if (part.equals("all")) {
+                return all();
+            } else if (part.equals("none")) {
+                return none();
+            } else if (part.startsWith("traversals:")) {
+                return everyNthTraversal(Integer.parseInt(part.substring(11)));
+            } else if (part.startsWith("classes:")) {
+                return viewClasses(Integer.parseInt(part.substring(8)));
+            } else if (part.startsWith("duty:")) {
+                final String[] values = part.substring(5).split("/");
+                if (values.length == 2) {
+                    return dutyCycle(Long.parseLong(values[0]), Long.parseLong(values[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+
+        throw new IllegalArgumentException("Invalid sampling policy: " + part);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Dumps the stats of all deployed {@link Probe}s when it receives a
+ * {@link Probe#ACTION_DUMP_STATS} broadcast, see
+ * {@link Probe#registerStatsReceiver(Context)}.
+ *
+ * <p>Stats are logged unless the broadcast has a {@link Probe#EXTRA_FILE_NAME}
+ * extra, in which case they are written to a file with that name in the
+ * {@link #STATS_DIR} subdirectory of the app's private files directory.</p>
+ *
+ * <p>Broadcasts are only accepted from senders holding the
+ * {@link Manifest.permission#DUMP} permission e.g. {@code adb shell}.</p>
+ */
+class StatsDumpReceiver extends BroadcastReceiver {
+    static final String STATS_DIR = "probe-stats";
+
+    private static final String TAG = "Probe";
+
+    // Context.RECEIVER_EXPORTED, required from Android 13 on for receivers
+    // of broadcasts sent by other apps.
+    private static final int RECEIVER_EXPORTED = 0x2;
+    private static final int TIRAMISU = 33;
+
+    /**
+     * Registers the given receiver for {@link Probe#ACTION_DUMP_STATS} broadcasts
+     * in the given {@link Context}.
+     */
+    static void register(Context context, StatsDumpReceiver receiver) {
+        final IntentFilter filter = new IntentFilter(Probe.ACTION_DUMP_STATS);
+
+        if (Build.VERSION.SDK_INT < TIRAMISU) {
+            context.registerReceiver(receiver, filter, Manifest.permission.DUMP, null);
+            return;
+        }
+
+        // The flags overload is newer than the SDK Probe compiles against.
+        try {
+            final Method registerMethod = Context.class.getMethod("registerReceiver",
+                    BroadcastReceiver.class, IntentFilter.class, String.class, Handler.class,
+                    int.class);
+            registerMethod.invoke(context, receiver, filter, Manifest.permission.DUMP, null,
+                    RECEIVER_EXPORTED);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "Failed to register stats receiver", e);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "Failed to register stats receiver", e);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "Failed to register stats receiver", e.getCause());
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String fileName = intent.getStringExtra(Probe.EXTRA_FILE_NAME);
+        if (fileName != null) {
+            dumpToFile(context, fileName);
+        } else {
+            dumpToLog();
+        }
+    }
+
+    private static void dumpToFile(Context context, String fileName) {
+        // Only plain file names, stats never leave Probe's own directory.
+        final File dir = new File(context.getFilesDir(), STATS_DIR);
+        final File file = new File(dir, new File(fileName).getName());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file);
+            Probe.dumpStats(writer);
+            Log.i(TAG, "Stats written to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write stats to " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static void dumpToLog() {
+        final StringWriter writer = new StringWriter();
+        Probe.dumpStats(writer);
+
+        // Log line by line to stay under logcat's entry size limit.
+        for (String line : writer.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+}
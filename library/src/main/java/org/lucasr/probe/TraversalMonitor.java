@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects the boundaries of layout traversals from the view method calls seen
+ * by {@link Interceptor}s, so that interceptors don't need to know which view
+ * starts a traversal.
+ *
+ * <p>Interceptors should call {@link #onViewCall(View)} at the start of their
+ * intercepted methods. A traversal starts on the first call for a view in a
+ * given window, which is told apart by its {@link ViewTreeObserver}. All the
+ * traversals started within a frame end once the frame is done, as signaled
+ * by a {@link Choreographer} frame callback (or a main thread message before
+ * Jelly Bean). Views in dialogs, popups and other windows get their own
+ * traversals.</p>
+ *
+ * <p>Interceptors that work on whole frames rather than traversals, e.g. to
+ * count calls made outside traversals, should use
+ * {@link #postFrameEnd(FrameEndCallback)} so that all of them agree on where
+ * frames end.</p>
+ *
+ * <p>Once every {@link Probe} has decided not to intercept the current
+ * traversal, {@link #sInterceptCalls} is cleared so that the proxies call
+ * their base class' methods directly for the rest of the frame. It's set
+ * again when the frame ends, so that the next traversal gets decided.</p>
+ *
+ * <p>{@link TraversalMonitor} should only be used from the UI thread.</p>
+ */
+public final class TraversalMonitor {
+    /**
+     * Returned by {@link #onViewCall(View)} for views that are not part of
+     * any traversal.
+     */
+    public static final int NO_TRAVERSAL = 0;
+
+    /**
+     * Whether proxies should hand their calls to their {@link Interceptor}.
+     * Read by the generated proxies before each intercepted call, it should
+     * not be written outside Probe.
+     */
+    public static volatile boolean sInterceptCalls = true;
+
+    /**
+     * Interface definition for callbacks invoked when traversals start and end.
+     */
+    public interface Listener {
+        /**
+         * Called when a traversal starts in the window of the given root view,
+         * before the view call that triggered it is performed.
+         */
+        void onTraversalStart(View rootView);
+
+        /**
+         * Called once the traversal in the window of the given root view is done.
+         */
+        void onTraversalEnd(View rootView);
+    }
+
+    /**
+     * Interface definition for a callback invoked once the current frame is done.
+     */
+    public interface FrameEndCallback {
+        /**
+         * Called once the frame is done, right after the frame's traversals end.
+         *
+         * @param frameTimeNanos the start time of the next frame, in the
+         * {@link System#nanoTime()} time base.
+         */
+        void onFrameEnd(long frameTimeNanos);
+    }
+
+    private static TraversalMonitor sInstance;
+
+    // Number of call filters that have to skip a frame before the proxies
+    // can skip it, see addCallFilter(). Filters can be added from any thread.
+    private final AtomicInteger mCallFilterCount;
+
+    // Call filters that skip the current frame.
+    private final List<Object> mSkippingCallFilters;
+
+    private final List<Listener> mListeners;
+
+    // Windows with an ongoing traversal. The traversal numbers are kept
+    // in a parallel primitive array to avoid boxing on every new traversal.
+    private final List<ViewTreeObserver> mActiveObservers;
+    private List<View> mActiveRoots;
+    private int[] mActiveTraversals;
+
+    // Roots being notified in endTraversals(), swapped with mActiveRoots
+    // so that traversals started by listeners are kept.
+    private List<View> mEndingRoots;
+
+    // Callbacks waiting for the current frame to end, swapped in the same
+    // way as the roots.
+    private List<FrameEndCallback> mFrameEndCallbacks;
+    private List<FrameEndCallback> mEndingFrameEndCallbacks;
+
+    // Window and traversal of the last view call, to skip lookups
+    // on repeated calls.
+    private ViewTreeObserver mLastObserver;
+    private int mLastTraversal;
+
+    private int mTraversalCount;
+
+    private final Runnable mEndTraversalsRunnable;
+    private final Handler mMainHandler;
+    private Object mFrameCallback;
+    private boolean mEndScheduled;
+
+    private TraversalMonitor() {
+        mListeners = new ArrayList<Listener>();
+        mActiveObservers = new ArrayList<ViewTreeObserver>();
+        mActiveRoots = new ArrayList<View>();
+        mActiveTraversals = new int[4];
+        mEndingRoots = new ArrayList<View>();
+        mFrameEndCallbacks = new ArrayList<FrameEndCallback>();
+        mEndingFrameEndCallbacks = new ArrayList<FrameEndCallback>();
+
+        mCallFilterCount = new AtomicInteger();
+        mSkippingCallFilters = new ArrayList<Object>();
+
+        mEndTraversalsRunnable = new Runnable() {
+            @Override
+            public void run() {
+                endTraversals(System.nanoTime());
+            }
+        };
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Returns the process-wide {@link TraversalMonitor}.
+     */
+    public static TraversalMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new TraversalMonitor();
+        }
+
+        return sInstance;
+    }
+
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener should not be null.");
+        }
+
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns whether there's an ongoing traversal in any window.
+     */
+    public boolean isInTraversal() {
+        return !mActiveObservers.isEmpty();
+    }
+
+    /**
+     * Should be called on every intercepted view method call. Notifies the
+     * listeners if the call starts a new traversal in the view's window.
+     *
+     * @return a number identifying the view's current traversal, increasing
+     * with each new traversal, or {@link #NO_TRAVERSAL} if the view is not
+     * attached to a window.
+     */
+    public int onViewCall(View view) {
+        // Detached views don't belong to a window's traversal.
+        if (view.getWindowToken() == null) {
+            return NO_TRAVERSAL;
+        }
+
+        final ViewTreeObserver observer = view.getViewTreeObserver();
+        if (observer == mLastObserver) {
+            return mLastTraversal;
+        }
+
+        mLastObserver = observer;
+
+        final int index = mActiveObservers.indexOf(observer);
+        if (index >= 0) {
+            mLastTraversal = mActiveTraversals[index];
+            return mLastTraversal;
+        }
+
+        final View rootView = view.getRootView();
+        mLastTraversal = ++mTraversalCount;
+
+        final int activeCount = mActiveObservers.size();
+        if (activeCount == mActiveTraversals.length) {
+            mActiveTraversals = Arrays.copyOf(mActiveTraversals, activeCount * 2);
+        }
+
+        mActiveTraversals[activeCount] = mLastTraversal;
+        mActiveObservers.add(observer);
+        mActiveRoots.add(rootView);
+
+        scheduleEndTraversals();
+
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onTraversalStart(rootView);
+        }
+
+        return mLastTraversal;
+    }
+
+    /**
+     * Invokes the given callback once, when the current frame is done. Call
+     * this again from the callback to follow the next frame.
+     */
+    public void postFrameEnd(FrameEndCallback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback should not be null.");
+        }
+
+        if (!mFrameEndCallbacks.contains(callback)) {
+            mFrameEndCallbacks.add(callback);
+        }
+
+        scheduleEndTraversals();
+    }
+
+    /**
+     * Registers a call filter, which decides whether the calls made in each
+     * traversal are intercepted. Proxies keep handing calls to their
+     * interceptors until all call filters skip the current frame with
+     * {@link #skipFrame(Object)}. Can be called from any thread.
+     */
+    void addCallFilter() {
+        mCallFilterCount.incrementAndGet();
+    }
+
+    /**
+     * Tells that the given call filter doesn't intercept any more calls in the
+     * current frame. Has no effect outside traversals.
+     */
+    void skipFrame(Object callFilter) {
+        if (mActiveObservers.isEmpty() || mSkippingCallFilters.contains(callFilter)) {
+            return;
+        }
+
+        mSkippingCallFilters.add(callFilter);
+        if (mSkippingCallFilters.size() >= mCallFilterCount.get()) {
+            sInterceptCalls = false;
+        }
+    }
+
+    private void scheduleEndTraversals() {
+        if (mEndScheduled) {
+            return;
+        }
+
+        mEndScheduled = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            mMainHandler.post(mEndTraversalsRunnable);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    endTraversals(frameTimeNanos);
+                }
+            };
+        }
+
+        // Runs at the start of the next frame, after the current
+        // frame's traversals are done.
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private void endTraversals(long frameTimeNanos) {
+        mEndScheduled = false;
+        mLastObserver = null;
+        mLastTraversal = NO_TRAVERSAL;
+
+        final List<View> rootViews = mActiveRoots;
+        mActiveRoots = mEndingRoots;
+        mEndingRoots = rootViews;
+        mActiveObservers.clear();
+
+        for (int i = 0; i < rootViews.size(); i++) {
+            for (int j = 0; j < mListeners.size(); j++) {
+                mListeners.get(j).onTraversalEnd(rootViews.get(i));
+            }
+        }
+
+        rootViews.clear();
+
+        // Let the first calls of the next frame decide again.
+        if (!mSkippingCallFilters.isEmpty()) {
+            mSkippingCallFilters.clear();
+            sInterceptCalls = true;
+        }
+
+        final List<FrameEndCallback> callbacks = mFrameEndCallbacks;
+        mFrameEndCallbacks = mEndingFrameEndCallbacks;
+        mEndingFrameEndCallbacks = callbacks;
+
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).onFrameEnd(frameTimeNanos);
+        }
+
+        callbacks.clear();
+    }
+}
@@ -19,10 +19,17 @@ package org.lucasr.probe;
 import android.content.Context;
 import android.view.View;
 
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Utility methods to find and load {@link View} classes. Used
  * by {@link ProbeViewFactory}.
  *
+ * <p>Lookups are cached per class loader, including failed ones, so that
+ * inflating the same tags over and over again doesn't go through the class
+ * loader nor throw exceptions.</p>
+ *
  * @see ProbeViewFactory
  */
 class ViewClassUtil {
@@ -35,6 +42,35 @@ class ViewClassUtil {
             "android.webkit."
     };
 
+    // Negative marker for names that don't resolve to a View class.
+    private static final Object NOT_FOUND = new Object();
+
+    // Tag name -> View class, per class loader.
+    private static final ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Object>>
+            sViewClasses = new ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Object>>();
+
+    // View class name -> build-time proxy class, per class loader.
+    private static final ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Object>>
+            sProxyViewClasses =
+                    new ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Object>>();
+
+    private static ConcurrentHashMap<String, Object> getClassCache(
+            ConcurrentHashMap<ClassLoader, ConcurrentHashMap<String, Object>> caches,
+            ClassLoader classLoader) {
+        ConcurrentHashMap<String, Object> cache = caches.get(classLoader);
+        if (cache == null) {
+            cache = new ConcurrentHashMap<String, Object>();
+
+            final ConcurrentHashMap<String, Object> existingCache =
+                    caches.putIfAbsent(classLoader, cache);
+            if (existingCache != null) {
+                cache = existingCache;
+            }
+        }
+
+        return cache;
+    }
+
     /**
      * Loads class for the given class name.
      */
@@ -48,32 +84,114 @@ class ViewClassUtil {
      * given class name.
      */
     static Class<?> findProxyViewClass(Context context, String name) {
+        final ConcurrentHashMap<String, Object> cache =
+                getClassCache(sProxyViewClasses, context.getClassLoader());
+
+        final Object cachedClass = cache.get(name);
+        if (cachedClass != null) {
+            return (cachedClass != NOT_FOUND ? (Class<?>) cachedClass : null);
+        }
+
+        Class<?> proxyClass;
         try {
-            return loadViewClass(context, String.format("%s.probe.ProbeProxy$%s",
+            proxyClass = loadViewClass(context, String.format("%s.probe.ProbeProxy$%s",
                     context.getPackageName(), name.replace('.', '_')));
+        } catch (ClassNotFoundException e) {
+            proxyClass = null;
+        }
+
+        cache.put(name, (proxyClass != null ? proxyClass : NOT_FOUND));
+        return proxyClass;
+    }
+
+    /**
+     * Tries to instantiate the {@link ViewProxyFactory} generated at build
+     * time for the given {@link Context}.
+     */
+    static ViewProxyFactory loadProxyFactory(Context context) {
+        final Class<?> factoryClass;
+        try {
+            factoryClass = context.getClassLoader().loadClass(String.format(
+                    "%s.probe.ProbeProxyFactory", context.getPackageName()));
         } catch (ClassNotFoundException e) {
             return null;
         }
+
+        try {
+            return (ViewProxyFactory) factoryClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Failed to create proxy factory", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to create proxy factory", e);
+        }
+    }
+
+    /**
+     * Tries to load the list of view class names referenced in the app's
+     * layout resources, as generated at build time.
+     */
+    static String[] loadViewClassNames(Context context) {
+        try {
+            final Class<?> listClass = context.getClassLoader().loadClass(String.format(
+                    "%s.probe.ProbeViewClasses", context.getPackageName()));
+            return (String[]) listClass.getField("VIEW_CLASS_NAMES").get(null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Failed to load view class names", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to load view class names", e);
+        }
+    }
+
+    /**
+     * Returns whether a proxy can be generated for the given class.
+     * Probe can't wrap final or abstract View classes.
+     */
+    static boolean canProxyViewClass(Class<?> viewClass) {
+        final int modifiers = viewClass.getModifiers();
+        return !Modifier.isFinal(modifiers) && !Modifier.isAbstract(modifiers);
     }
 
     /**
      * Tries to load class using a predefined list of class prefixes for
-     * Android views.
+     * Android views. Returns {@code null} if the given name doesn't resolve
+     * to a {@link View} class.
      */
-    static Class<?> findViewClass(Context context, String name)
-            throws ClassNotFoundException {
-        if (name.indexOf('.') >= 0) {
-            return loadViewClass(context, name);
+    static Class<?> findViewClass(Context context, String name) {
+        final ConcurrentHashMap<String, Object> cache =
+                getClassCache(sViewClasses, context.getClassLoader());
+
+        final Object cachedClass = cache.get(name);
+        if (cachedClass != null) {
+            return (cachedClass != NOT_FOUND ? (Class<?>) cachedClass : null);
         }
 
-        for (String prefix : VIEW_CLASS_PREFIX_LIST) {
-            try {
-                return loadViewClass(context, prefix + name);
-            } catch (ClassNotFoundException e) {
-                continue;
+        final Class<?> viewClass = resolveViewClass(context, name);
+        cache.put(name, (viewClass != null ? viewClass : NOT_FOUND));
+        return viewClass;
+    }
+
+    private static Class<?> resolveViewClass(Context context, String name) {
+        try {
+            if (name.indexOf('.') >= 0) {
+                return loadViewClass(context, name);
             }
+
+            for (String prefix : VIEW_CLASS_PREFIX_LIST) {
+                try {
+                    return loadViewClass(context, prefix + name);
+                } catch (ClassNotFoundException e) {
+                    continue;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ClassCastException e) {
+            // Not a View subclass.
+            return null;
         }
 
-        throw new ClassNotFoundException("Couldn't load View class for " + name);
+        return null;
     }
 }
@@ -29,9 +29,8 @@ import static org.lucasr.probe.ViewClassUtil.findProxyViewClass;
 
 import java.lang.reflect.UndeclaredThrowableException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Builds a proxy class that redirects {@link View} layout-related method
@@ -44,18 +43,28 @@ import java.util.Map;
  * @see ProbeViewFactory
  */
 final class ViewProxyBuilder<T extends View> {
-    private static final Map<Class<?>, Class<?>> sGeneratedProxyClasses =
-            Collections.synchronizedMap(new HashMap<Class<?>, Class<?>>());
+    // Base class -> parent class loader -> method mask -> proxy class. Proxies can
+    // be built from several threads e.g. when layouts are inflated in the background.
+    private static final ConcurrentHashMap<Class<?>,
+            ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>>>
+            sGeneratedProxyClasses = new ConcurrentHashMap<Class<?>,
+                    ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>>>();
 
     static final Class<?>[] CONSTRUCTOR_ARG_TYPES = new Class<?>[] {
         Context.class, AttributeSet.class
     };
-    private static final Object[] CONSTRUCTOR_ARG_VALUES = new Object[2];
+
+    private static Boolean sDexMakerAvailable;
 
     private final Context mContext;
     private final Class<T> mBaseClass;
     private final ClassLoader mParentClassLoader;
     private Interceptor mInterceptor;
+    private int mMethodMask = Interceptor.MASK_ALL;
+    private ViewProxyFactory mProxyFactory;
+    private boolean mAllowProxyGeneration = true;
+    private Context mConstructorContext;
+    private AttributeSet mConstructorAttrs;
 
     private ViewProxyBuilder(Context context, Class<T> clazz) {
         mContext = context;
@@ -75,6 +84,85 @@ final class ViewProxyBuilder<T extends View> {
         return constructor;
     }
 
+    /**
+     * Returns whether DexMaker is available to generate proxies at runtime.
+     */
+    static synchronized boolean isDexMakerAvailable() {
+        if (sDexMakerAvailable == null) {
+            try {
+                Class.forName("com.google.dexmaker.DexMaker");
+                sDexMakerAvailable = Boolean.TRUE;
+            } catch (ClassNotFoundException e) {
+                sDexMakerAvailable = Boolean.FALSE;
+            }
+        }
+
+        return sDexMakerAvailable;
+    }
+
+    /**
+     * Returns the cached proxy class for the given base class if it was
+     * loaded by, or on top of, the given class loader. Proxy classes
+     * overriding all view methods are returned if there's no cached proxy
+     * class for the given method mask e.g. when they were prewarmed.
+     */
+    static Class<?> findCachedProxyClass(Class<?> baseClass, ClassLoader parentClassLoader,
+                                         int methodMask) {
+        final ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>> proxyClasses =
+                sGeneratedProxyClasses.get(baseClass);
+        if (proxyClasses == null) {
+            return null;
+        }
+
+        final AtomicReferenceArray<Class<?>> proxyClassesByMask =
+                proxyClasses.get(parentClassLoader);
+        if (proxyClassesByMask == null) {
+            return null;
+        }
+
+        final Class<?> proxyClass = proxyClassesByMask.get(methodMask);
+        return (proxyClass != null ? proxyClass : proxyClassesByMask.get(Interceptor.MASK_ALL));
+    }
+
+    /**
+     * Caches the proxy class for the given base class, parent class loader and
+     * method mask. If another thread cached a proxy class first, the existing
+     * one is kept and returned so that all threads end up using the same proxy
+     * class.
+     */
+    static Class<?> cacheProxyClass(Class<?> baseClass, ClassLoader parentClassLoader,
+                                    int methodMask, Class<?> proxyClass) {
+        ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>> proxyClasses =
+                sGeneratedProxyClasses.get(baseClass);
+        if (proxyClasses == null) {
+            proxyClasses = new ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>>();
+
+            final ConcurrentHashMap<ClassLoader, AtomicReferenceArray<Class<?>>>
+                    existingProxyClasses = sGeneratedProxyClasses.putIfAbsent(baseClass,
+                            proxyClasses);
+            if (existingProxyClasses != null) {
+                proxyClasses = existingProxyClasses;
+            }
+        }
+
+        AtomicReferenceArray<Class<?>> proxyClassesByMask = proxyClasses.get(parentClassLoader);
+        if (proxyClassesByMask == null) {
+            proxyClassesByMask = new AtomicReferenceArray<Class<?>>(Interceptor.MASK_ALL + 1);
+
+            final AtomicReferenceArray<Class<?>> existingProxyClassesByMask =
+                    proxyClasses.putIfAbsent(parentClassLoader, proxyClassesByMask);
+            if (existingProxyClassesByMask != null) {
+                proxyClassesByMask = existingProxyClassesByMask;
+            }
+        }
+
+        if (proxyClassesByMask.compareAndSet(methodMask, null, proxyClass)) {
+            return proxyClass;
+        }
+
+        return proxyClassesByMask.get(methodMask);
+    }
+
     /**
      * Generates dynamic {@link View} proxy class.
      */
@@ -84,10 +172,10 @@ final class ViewProxyBuilder<T extends View> {
             return mBaseClass;
         }
 
-        Class<? extends T> proxyClass = (Class) sGeneratedProxyClasses.get(mBaseClass);
-        if (proxyClass != null &&
-                (proxyClass.getClassLoader() == mParentClassLoader ||
-                 proxyClass.getClassLoader().getParent() == mParentClassLoader)) {
+        Class<? extends T> proxyClass =
+                (Class<? extends T>) findCachedProxyClass(mBaseClass, mParentClassLoader,
+                        mMethodMask);
+        if (proxyClass != null) {
             // Cache hit; return immediately.
             return proxyClass;
         }
@@ -95,16 +183,17 @@ final class ViewProxyBuilder<T extends View> {
         proxyClass = (Class<? extends T>) findProxyViewClass(mContext, mBaseClass.getName());
         if (proxyClass != null) {
             // This app ships with the build-time proxy.
-            sGeneratedProxyClasses.put(mBaseClass, proxyClass);
-            return proxyClass;
+            return (Class<? extends T>) cacheProxyClass(mBaseClass, mParentClassLoader,
+                    mMethodMask, proxyClass);
         }
 
-        try {
-            Class.forName("com.google.dexmaker.DexMaker");
-            return DexProxyBuilder.generateProxyClass(mContext, mBaseClass);
-        } catch (ClassNotFoundException e) {
+        if (!mAllowProxyGeneration || !isDexMakerAvailable()) {
             return null;
         }
+
+        proxyClass = DexProxyBuilder.generateProxyClass(mContext, mBaseClass, mMethodMask);
+        return (Class<? extends T>) cacheProxyClass(mBaseClass, mParentClassLoader, mMethodMask,
+                proxyClass);
     }
 
     private static RuntimeException launderCause(InvocationTargetException e) {
@@ -133,9 +222,32 @@ final class ViewProxyBuilder<T extends View> {
         return this;
     }
 
+    /**
+     * Sets the mask of view methods the generated proxy class should override,
+     * see {@link Interceptor#getInterceptedMethods()}.
+     */
+    ViewProxyBuilder methodMask(int methodMask) {
+        mMethodMask = methodMask;
+        return this;
+    }
+
+    /**
+     * Whether {@link #build()} may generate a runtime proxy class when there's
+     * no build-time or cached one. If not, {@link #build()} returns {@code null}.
+     */
+    ViewProxyBuilder allowProxyGeneration(boolean allowProxyGeneration) {
+        mAllowProxyGeneration = allowProxyGeneration;
+        return this;
+    }
+
+    ViewProxyBuilder proxyFactory(ViewProxyFactory proxyFactory) {
+        mProxyFactory = proxyFactory;
+        return this;
+    }
+
     ViewProxyBuilder constructorArgValues(Context context, AttributeSet attrs) {
-        CONSTRUCTOR_ARG_VALUES[0] = context;
-        CONSTRUCTOR_ARG_VALUES[1] = attrs;
+        mConstructorContext = context;
+        mConstructorAttrs = attrs;
         return this;
     }
 
@@ -143,6 +255,16 @@ final class ViewProxyBuilder<T extends View> {
      * Builds instance of the built {@link View} proxy class..
      */
     View build() throws IOException {
+        if (mProxyFactory != null) {
+            // Build-time proxies can be created without reflection.
+            final View result = mProxyFactory.createProxy(mBaseClass.getName(),
+                    mConstructorContext, mConstructorAttrs);
+            if (result != null) {
+                ((ViewProxy) result).setInterceptor(mInterceptor);
+                return result;
+            }
+        }
+
         final Class<? extends T> proxyClass = generateProxyClass();
         if (proxyClass == null) {
             return null;
@@ -152,7 +274,7 @@ final class ViewProxyBuilder<T extends View> {
 
         final View result;
         try {
-            result = constructor.newInstance(CONSTRUCTOR_ARG_VALUES);
+            result = constructor.newInstance(mConstructorContext, mConstructorAttrs);
         } catch (InstantiationException e) {
             // Should not be thrown, generated class is not abstract.
             throw new AssertionError(e);
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Creates instances of the {@link View} proxies generated at build time.
+ * <p>
+ * Probe's Gradle plugin generates a {@code ProbeProxyFactory} class in your
+ * app's {@code probe} package alongside the proxy classes. {@link Probe} uses
+ * it to create proxies with plain constructor calls instead of looking up
+ * and invoking proxy constructors via reflection.
+ */
+public interface ViewProxyFactory {
+    /**
+     * Creates a new proxy instance for the given {@link View} class name.
+     * Returns {@code null} if there's no build-time proxy for the class.
+     */
+    View createProxy(String className, Context context, AttributeSet attrs);
+}
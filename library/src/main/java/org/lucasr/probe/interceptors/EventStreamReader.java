@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the live event stream served by {@link StreamingInterceptor}. Only
+ * depends on {@code java.io} so that it can be used by host tools, e.g. reading
+ * from a socket forwarded with {@code adb forward}.
+ *
+ * <p>Events are delivered to a {@link Listener} as frames are read with
+ * {@link #readFrame()}. Class indexes in the stream are resolved to class
+ * names.</p>
+ */
+public final class EventStreamReader {
+    public static final int SPAN_ON_MEASURE = SpanBuffer.TYPE_ON_MEASURE;
+    public static final int SPAN_ON_LAYOUT = SpanBuffer.TYPE_ON_LAYOUT;
+    public static final int SPAN_DRAW = SpanBuffer.TYPE_DRAW;
+    public static final int SPAN_ON_DRAW = SpanBuffer.TYPE_ON_DRAW;
+    public static final int SPAN_REQUEST_LAYOUT = SpanBuffer.TYPE_REQUEST_LAYOUT;
+
+    /**
+     * Receives the events read from the stream.
+     */
+    public interface Listener {
+        void onHello(int version, int pid);
+
+        /**
+         * Called for each intercepted call, once it returns.
+         *
+         * @param type one of the {@code SPAN_*} constants.
+         * @param viewId the view's ID, or {@link android.view.View#NO_ID}.
+         */
+        void onSpan(int type, String viewClassName, int viewIdentity, int viewId,
+                    long startTime, long duration);
+
+        /**
+         * Called when a layout traversal starts in the window of the given
+         * root view.
+         */
+        void onTraversalStart(int traversal, long time, String rootClassName,
+                              int rootIdentity);
+
+        /**
+         * Called with the view tree of a traversal's window, in depth-first order.
+         */
+        void onSnapshot(int traversal, List<ViewNode> views);
+    }
+
+    /**
+     * A view in a view tree snapshot.
+     */
+    public static final class ViewNode {
+        private final String mViewClassName;
+        private final int mViewIdentity;
+        private final int mParentIdentity;
+        private final int mViewId;
+        private final int mLeft;
+        private final int mTop;
+        private final int mWidth;
+        private final int mHeight;
+
+        private ViewNode(String viewClassName, int viewIdentity, int parentIdentity,
+                         int viewId, int left, int top, int width, int height) {
+            mViewClassName = viewClassName;
+            mViewIdentity = viewIdentity;
+            mParentIdentity = parentIdentity;
+            mViewId = viewId;
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public String getViewClassName() {
+            return mViewClassName;
+        }
+
+        public int getViewIdentity() {
+            return mViewIdentity;
+        }
+
+        /**
+         * Returns the parent's identity, or 0 for the root view.
+         */
+        public int getParentIdentity() {
+            return mParentIdentity;
+        }
+
+        public int getViewId() {
+            return mViewId;
+        }
+
+        public int getLeft() {
+            return mLeft;
+        }
+
+        public int getTop() {
+            return mTop;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final DataInputStream mIn;
+    private final Listener mListener;
+    private final List<String> mClassNames;
+    private boolean mHelloRead;
+
+    public EventStreamReader(InputStream in, Listener listener) {
+        if (in == null) {
+            throw new IllegalArgumentException("InputStream should not be null.");
+        }
+
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener should not be null.");
+        }
+
+        mIn = new DataInputStream(in);
+        mListener = listener;
+        mClassNames = new ArrayList<String>();
+    }
+
+    /**
+     * Reads the next frame and notifies the listener. Returns {@code false} once
+     * the end of the stream is reached.
+     *
+     * @throws IOException if the stream is not a valid event stream.
+     */
+    public boolean readFrame() throws IOException {
+        final int type = mIn.read();
+        if (type < 0) {
+            return false;
+        }
+
+        final int length = mIn.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        if (!mHelloRead && type != EventStreamWriter.FRAME_HELLO) {
+            throw new IOException("Stream doesn't start with a hello frame");
+        }
+
+        switch (type) {
+            case EventStreamWriter.FRAME_HELLO:
+                readHello();
+                break;
+
+            case EventStreamWriter.FRAME_CLASS:
+                readClass();
+                break;
+
+            case EventStreamWriter.FRAME_SPANS:
+                readSpans();
+                break;
+
+            case EventStreamWriter.FRAME_SNAPSHOT:
+                readSnapshot();
+                break;
+
+            case EventStreamWriter.FRAME_HEARTBEAT:
+                // Only sent to detect disconnected clients.
+                skipFully(length);
+                break;
+
+            default:
+                skipFully(length);
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads frames until the end of the stream.
+     */
+    public void readAll() throws IOException {
+        while (readFrame()) {
+            // Keep reading.
+        }
+    }
+
+    private void skipFully(int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = mIn.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private String getClassName(int index) throws IOException {
+        if (index < 0 || index >= mClassNames.size()) {
+            throw new IOException("Unknown class index: " + index);
+        }
+
+        return mClassNames.get(index);
+    }
+
+    private void readHello() throws IOException {
+        if (mIn.readInt() != EventStreamWriter.MAGIC) {
+            throw new IOException("Not a Probe event stream");
+        }
+
+        final int version = mIn.readInt();
+        if (version != EventStreamWriter.VERSION) {
+            throw new IOException("Unsupported event stream version: " + version);
+        }
+
+        final int pid = mIn.readInt();
+        mHelloRead = true;
+
+        mListener.onHello(version, pid);
+    }
+
+    private void readClass() throws IOException {
+        final int index = mIn.readInt();
+        if (index != mClassNames.size()) {
+            throw new IOException("Unexpected class index: " + index);
+        }
+
+        mClassNames.add(mIn.readUTF());
+    }
+
+    private void readSpans() throws IOException {
+        final int count = mIn.readInt();
+        for (int i = 0; i < count; i++) {
+            final int type = mIn.readByte();
+            final String className = getClassName(mIn.readInt());
+            final int viewIdentity = mIn.readInt();
+            final int arg = mIn.readInt();
+            final long startTime = mIn.readLong();
+            final long duration = mIn.readLong();
+
+            if (type == SpanBuffer.TYPE_TRAVERSAL) {
+                mListener.onTraversalStart(arg, startTime, className, viewIdentity);
+            } else {
+                mListener.onSpan(type, className, viewIdentity, arg, startTime, duration);
+            }
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        final int traversal = mIn.readInt();
+        final int count = mIn.readInt();
+
+        final List<ViewNode> views = new ArrayList<ViewNode>();
+        for (int i = 0; i < count; i++) {
+            views.add(new ViewNode(getClassName(mIn.readInt()), mIn.readInt(), mIn.readInt(),
+                    mIn.readInt(), mIn.readInt(), mIn.readInt(), mIn.readInt(), mIn.readInt()));
+        }
+
+        mListener.onSnapshot(traversal, views);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes Probe's live event stream, as read by {@link EventStreamReader}.
+ *
+ * <p>The stream is a sequence of frames, each made of a type byte, the payload
+ * length as an int and the payload. All values are big-endian. Frames are:</p>
+ * <ul>
+ *     <li>{@link #FRAME_HELLO}: magic, version and process ID ints. Always the
+ *     first frame.</li>
+ *     <li>{@link #FRAME_CLASS}: class index int and class name in modified
+ *     UTF-8. Sent before the first frame that references the class.</li>
+ *     <li>{@link #FRAME_SPANS}: span count int, followed by each span's type byte,
+ *     class index, view identity and arg ints, and start time and duration longs
+ *     in nanoseconds. The arg is the view ID, or the traversal number for
+ *     traversal start spans.</li>
+ *     <li>{@link #FRAME_SNAPSHOT}: traversal and view count ints, followed by
+ *     each view's class index, identity, parent identity, ID, left, top, width
+ *     and height ints, in depth-first order.</li>
+ *     <li>{@link #FRAME_HEARTBEAT}: empty. Sent while there are no events so
+ *     that disconnected clients are noticed.</li>
+ * </ul>
+ *
+ * <p>Readers should skip frames of unknown types.</p>
+ */
+final class EventStreamWriter {
+    static final int MAGIC = 0x50524253; // "PRBS"
+    static final int VERSION = 1;
+
+    static final int FRAME_HELLO = 0;
+    static final int FRAME_CLASS = 1;
+    static final int FRAME_SPANS = 2;
+    static final int FRAME_SNAPSHOT = 3;
+    static final int FRAME_HEARTBEAT = 4;
+
+    static final int MAX_SPANS_PER_FRAME = 512;
+
+    private final DataOutputStream mOut;
+
+    private final ByteArrayOutputStream mPayloadBytes;
+    private final DataOutputStream mPayload;
+
+    private final Map<Class<?>, Integer> mClassIndexes;
+
+    EventStreamWriter(OutputStream out) {
+        mOut = new DataOutputStream(out);
+        mPayloadBytes = new ByteArrayOutputStream();
+        mPayload = new DataOutputStream(mPayloadBytes);
+        mClassIndexes = new HashMap<Class<?>, Integer>();
+    }
+
+    private void writeFrame(int type) throws IOException {
+        mPayload.flush();
+
+        mOut.writeByte(type);
+        mOut.writeInt(mPayloadBytes.size());
+        mPayloadBytes.writeTo(mOut);
+
+        mPayloadBytes.reset();
+    }
+
+    /**
+     * Returns the index of the given class, writing a {@link #FRAME_CLASS} frame
+     * straight to the output if it's the first time the class is seen.
+     */
+    private int getClassIndex(Class<?> viewClass) throws IOException {
+        Integer index = mClassIndexes.get(viewClass);
+        if (index == null) {
+            index = mClassIndexes.size();
+            mClassIndexes.put(viewClass, index);
+
+            mOut.writeByte(FRAME_CLASS);
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream classPayload = new DataOutputStream(bytes);
+            classPayload.writeInt(index);
+            classPayload.writeUTF(viewClass.getName());
+            classPayload.flush();
+
+            mOut.writeInt(bytes.size());
+            bytes.writeTo(mOut);
+        }
+
+        return index;
+    }
+
+    void writeHello(int pid) throws IOException {
+        mPayload.writeInt(MAGIC);
+        mPayload.writeInt(VERSION);
+        mPayload.writeInt(pid);
+        writeFrame(FRAME_HELLO);
+    }
+
+    /**
+     * Writes the spans between the given sequence numbers in one or more
+     * {@link #FRAME_SPANS} frames.
+     */
+    void writeSpans(SpanBuffer buffer, long fromSequence, long toSequence) throws IOException {
+        long sequence = fromSequence;
+        while (sequence < toSequence) {
+            final int count = (int) Math.min(toSequence - sequence, MAX_SPANS_PER_FRAME);
+
+            mPayload.writeInt(count);
+            for (int i = 0; i < count; i++, sequence++) {
+                final long startTime = buffer.getStartTime(sequence);
+
+                mPayload.writeByte(buffer.getType(sequence));
+                mPayload.writeInt(getClassIndex(buffer.getViewClass(sequence)));
+                mPayload.writeInt(buffer.getViewIdentity(sequence));
+                mPayload.writeInt(buffer.getArg(sequence));
+                mPayload.writeLong(startTime);
+                mPayload.writeLong(buffer.getEndTime(sequence) - startTime);
+            }
+
+            writeFrame(FRAME_SPANS);
+        }
+    }
+
+    void writeSnapshot(ViewTreeSnapshot snapshot) throws IOException {
+        mPayload.writeInt(snapshot.mTraversal);
+        mPayload.writeInt(snapshot.mCount);
+
+        for (int i = 0; i < snapshot.mCount; i++) {
+            mPayload.writeInt(getClassIndex(snapshot.mViewClasses[i]));
+            mPayload.writeInt(snapshot.mViewIdentities[i]);
+            mPayload.writeInt(snapshot.mParentIdentities[i]);
+            mPayload.writeInt(snapshot.mViewIds[i]);
+            for (int j = 0; j < 4; j++) {
+                mPayload.writeInt(snapshot.mBounds[i * 4 + j]);
+            }
+        }
+
+        writeFrame(FRAME_SNAPSHOT);
+    }
+
+    void writeHeartbeat() throws IOException {
+        writeFrame(FRAME_HEARTBEAT);
+    }
+
+    void flush() throws IOException {
+        mOut.flush();
+    }
+}
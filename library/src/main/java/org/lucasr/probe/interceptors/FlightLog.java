@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Memory-mapped ring file of fixed-width view method records. Since the file
+ * is mapped, records written before the process dies (crash, ANR kill) are
+ * kept by the kernel and can be read on the next launch.
+ *
+ * <p>The file starts with a header, followed by a table of view names and the
+ * records ring. Each record holds its sequence number, written last, so that
+ * torn and overwritten records can be told apart when reading the file. A
+ * record's duration is {@link #DURATION_IN_PROGRESS} until its call returns.</p>
+ *
+ * <p>{@link FlightLog} should only be written from one thread.</p>
+ */
+final class FlightLog {
+    static final int METHOD_ON_MEASURE = 0;
+    static final int METHOD_ON_LAYOUT = 1;
+    static final int METHOD_DRAW = 2;
+    static final int METHOD_ON_DRAW = 3;
+    static final int METHOD_REQUEST_LAYOUT = 4;
+
+    static final int NO_NAME = -1;
+    static final long DURATION_IN_PROGRESS = -1;
+
+    private static final String[] METHOD_NAMES = {
+        "onMeasure",
+        "onLayout",
+        "draw",
+        "onDraw",
+        "requestLayout"
+    };
+
+    private static final long MAGIC = 0x50524f4245464c54L; // "PROBEFLT"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_NAMES_SIZE = 16;
+    private static final int HEADER_NAME_COUNT = 20;
+    private static final int HEADER_NAMES_USED = 24;
+    private static final int HEADER_WRITE_SEQUENCE = 32;
+    private static final int HEADER_START_NANOS = 40;
+    private static final int HEADER_START_MILLIS = 48;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int RECORD_SEQUENCE = 0;
+    private static final int RECORD_NAME = 4;
+    private static final int RECORD_VIEW_IDENTITY = 8;
+    private static final int RECORD_METHOD = 12;
+    private static final int RECORD_DEPTH = 13;
+    private static final int RECORD_START = 16;
+    private static final int RECORD_DURATION = 24;
+    private static final int RECORD_ARG1 = 32;
+    private static final int RECORD_ARG2 = 36;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mNamesSize;
+    private final int mRecordsOffset;
+
+    private int mNameCount;
+    private int mNamesUsed;
+    private long mWriteSequence;
+
+    FlightLog(File file, int capacity, int namesSize) throws IOException {
+        mCapacity = capacity;
+        mNamesSize = namesSize;
+        mRecordsOffset = HEADER_SIZE + namesSize;
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final long size = (long) mRecordsOffset + (long) capacity * RECORD_SIZE;
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(size);
+
+            // The mapping stays valid after the channel is closed.
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_CAPACITY, capacity);
+        mBuffer.putInt(HEADER_NAMES_SIZE, namesSize);
+        mBuffer.putLong(HEADER_START_NANOS, System.nanoTime());
+        mBuffer.putLong(HEADER_START_MILLIS, System.currentTimeMillis());
+
+        // Written last so that partially initialized files are rejected.
+        mBuffer.putLong(HEADER_MAGIC, MAGIC);
+    }
+
+    /**
+     * Adds the given name to the names table. Returns its index, or
+     * {@link #NO_NAME} if the table is full.
+     */
+    int addName(String name) {
+        final byte[] bytes = name.getBytes(UTF_8);
+        final int length = Math.min(bytes.length, Short.MAX_VALUE);
+
+        if (mNamesUsed + 2 + length > mNamesSize) {
+            return NO_NAME;
+        }
+
+        final int offset = HEADER_SIZE + mNamesUsed;
+        mBuffer.putShort(offset, (short) length);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(offset + 2 + i, bytes[i]);
+        }
+
+        mNamesUsed += 2 + length;
+        mBuffer.putInt(HEADER_NAMES_USED, mNamesUsed);
+        mBuffer.putInt(HEADER_NAME_COUNT, mNameCount + 1);
+
+        return mNameCount++;
+    }
+
+    /**
+     * Writes a record for a call that just started. Returns the record's
+     * sequence number, to be passed to {@link #endRecord(long, long)}.
+     */
+    long beginRecord(int nameIndex, int viewIdentity, int method, int depth, long startTime,
+                     int arg1, int arg2) {
+        final long sequence = mWriteSequence++;
+        final int offset = getRecordOffset(sequence);
+
+        // Invalidate the slot while it's being rewritten.
+        mBuffer.putInt(offset + RECORD_SEQUENCE, 0);
+
+        mBuffer.putInt(offset + RECORD_NAME, nameIndex);
+        mBuffer.putInt(offset + RECORD_VIEW_IDENTITY, viewIdentity);
+        mBuffer.put(offset + RECORD_METHOD, (byte) method);
+        mBuffer.put(offset + RECORD_DEPTH, (byte) Math.min(depth, Byte.MAX_VALUE));
+        mBuffer.putLong(offset + RECORD_START, startTime);
+        mBuffer.putLong(offset + RECORD_DURATION, DURATION_IN_PROGRESS);
+        mBuffer.putInt(offset + RECORD_ARG1, arg1);
+        mBuffer.putInt(offset + RECORD_ARG2, arg2);
+
+        mBuffer.putInt(offset + RECORD_SEQUENCE, toStoredSequence(sequence));
+        mBuffer.putLong(HEADER_WRITE_SEQUENCE, mWriteSequence);
+
+        return sequence;
+    }
+
+    /**
+     * Sets the duration of the given record, unless it has already been
+     * overwritten by newer records.
+     */
+    void endRecord(long sequence, long duration) {
+        if (mWriteSequence - sequence > mCapacity) {
+            return;
+        }
+
+        mBuffer.putLong(getRecordOffset(sequence) + RECORD_DURATION, duration);
+    }
+
+    private int getRecordOffset(long sequence) {
+        return mRecordsOffset + (int) (sequence % mCapacity) * RECORD_SIZE;
+    }
+
+    private static int toStoredSequence(long sequence) {
+        // Zero marks empty or torn records.
+        return (int) sequence + 1;
+    }
+
+    /**
+     * Writes the records in the given file, oldest first, in a human
+     * readable form.
+     */
+    static void dump(File file, PrintWriter writer) throws IOException {
+        final ByteBuffer buffer;
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getLong(HEADER_MAGIC) != MAGIC) {
+            throw new IOException("Not a flight recorder file: " + file);
+        }
+
+        if (buffer.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException("Unsupported flight recorder file version: " +
+                    buffer.getInt(HEADER_VERSION));
+        }
+
+        final int capacity = buffer.getInt(HEADER_CAPACITY);
+        final int namesSize = buffer.getInt(HEADER_NAMES_SIZE);
+        final int recordsOffset = HEADER_SIZE + namesSize;
+
+        final String[] names = new String[buffer.getInt(HEADER_NAME_COUNT)];
+        int nameOffset = HEADER_SIZE;
+        for (int i = 0; i < names.length; i++) {
+            final int length = buffer.getShort(nameOffset);
+            final byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(nameOffset + 2 + j);
+            }
+
+            names[i] = new String(bytes, UTF_8);
+            nameOffset += 2 + length;
+        }
+
+        final long startNanos = buffer.getLong(HEADER_START_NANOS);
+        final long writeSequence = buffer.getLong(HEADER_WRITE_SEQUENCE);
+
+        writer.println("Recording started at " + buffer.getLong(HEADER_START_MILLIS) +
+                " (ms since epoch), " + writeSequence + " records");
+
+        // The record being written when the process died might not be
+        // reflected in the header yet. Its slot is shared with the oldest
+        // record, sequence numbers tell which one is there.
+        final long firstSequence = Math.max(0, writeSequence - capacity);
+        final long lastSequence = writeSequence + 1;
+
+        for (long sequence = firstSequence; sequence < lastSequence; sequence++) {
+            final int offset = recordsOffset + (int) (sequence % capacity) * RECORD_SIZE;
+            if (buffer.getInt(offset + RECORD_SEQUENCE) != toStoredSequence(sequence)) {
+                continue;
+            }
+
+            final int nameIndex = buffer.getInt(offset + RECORD_NAME);
+            final int method = buffer.get(offset + RECORD_METHOD);
+            final int depth = buffer.get(offset + RECORD_DEPTH);
+            final long startTime = buffer.getLong(offset + RECORD_START);
+            final long duration = buffer.getLong(offset + RECORD_DURATION);
+            final int arg1 = buffer.getInt(offset + RECORD_ARG1);
+            final int arg2 = buffer.getInt(offset + RECORD_ARG2);
+
+            final StringBuilder line = new StringBuilder();
+            line.append('+').append(formatMillis(startTime - startNanos)).append("ms ");
+            for (int i = 0; i < depth; i++) {
+                line.append("  ");
+            }
+
+            line.append(nameIndex >= 0 && nameIndex < names.length ? names[nameIndex] : "?");
+            line.append('@').append(Integer.toHexString(buffer.getInt(offset +
+                    RECORD_VIEW_IDENTITY)));
+            line.append('.').append(method >= 0 && method < METHOD_NAMES.length ?
+                    METHOD_NAMES[method] : "?");
+
+            if (method == METHOD_ON_MEASURE) {
+                line.append(" w=").append(formatMeasureSpec(arg1));
+                line.append(" h=").append(formatMeasureSpec(arg2));
+            } else if (method == METHOD_ON_LAYOUT) {
+                line.append(" size=").append(arg1).append('x').append(arg2);
+            }
+
+            if (duration == DURATION_IN_PROGRESS) {
+                line.append(" (in progress)");
+            } else {
+                line.append(' ').append(formatMillis(duration)).append("ms");
+            }
+
+            writer.println(line);
+        }
+
+        writer.flush();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    private static String formatMeasureSpec(int measureSpec) {
+        final int mode = View.MeasureSpec.getMode(measureSpec);
+        final int size = View.MeasureSpec.getSize(measureSpec);
+
+        if (mode == View.MeasureSpec.EXACTLY) {
+            return "EXACTLY " + size;
+        } else if (mode == View.MeasureSpec.AT_MOST) {
+            return "AT_MOST " + size;
+        } else {
+            return "UNSPECIFIED " + size;
+        }
+    }
+}
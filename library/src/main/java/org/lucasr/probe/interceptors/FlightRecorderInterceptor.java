@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)},
+ * {@link View#onDraw(Canvas)} and {@link View#requestLayout()} calls into a
+ * memory-mapped ring file. Because the file is mapped, the most recent records
+ * survive crashes and ANRs.
+ *
+ * <p>Each record holds the view's name (class and ID), identity, method, depth,
+ * start time, duration and, for {@link View#onMeasure(int, int)}, the measure
+ * specs. Records are written when the call starts so that calls that never
+ * return are kept. Their duration is only filled in when the call returns.
+ * View names are stored once in a side table in the same file.</p>
+ *
+ * <p>Any existing file is moved to {@link #getPreviousFile()} when recording
+ * starts, so the records leading up to a crash can be read on the next launch
+ * with {@link #dump(File, PrintWriter)}.</p>
+ *
+ * <p>Subclasses can override the intercepted methods to add their own behavior.
+ * Calls are recorded as long as the overrides call through to {@code super}.</p>
+ *
+ * <p>{@link FlightRecorderInterceptor} should only be used from the UI thread.</p>
+ */
+public class FlightRecorderInterceptor extends Interceptor {
+    private static final int DEFAULT_CAPACITY = 16384;
+    private static final int NAMES_SIZE = 64 * 1024;
+
+    private static final String PREVIOUS_FILE_SUFFIX = ".prev";
+
+    // Name indexes are stored shifted by this much so that 0 means the view
+    // hasn't been seen yet, and views without a name are still cached.
+    private static final int NAME_INDEX_SHIFT = 1 - FlightLog.NO_NAME;
+
+    private final File mFile;
+    private final File mPreviousFile;
+    private final FlightLog mLog;
+
+    private final ViewCountTable mViewNames;
+    private final Map<String, Integer> mNameIndexes;
+
+    private int mDepth;
+
+    /**
+     * Creates a {@link FlightRecorderInterceptor} recording into a file with
+     * the given name in the app's private files directory.
+     */
+    public FlightRecorderInterceptor(Context context, String fileName) {
+        this(new File(context.getFilesDir(), fileName));
+    }
+
+    public FlightRecorderInterceptor(File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of records kept in the file.
+     */
+    public FlightRecorderInterceptor(File file, int capacity) {
+        if (file == null) {
+            throw new IllegalArgumentException("File should not be null.");
+        }
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+
+        mFile = file;
+        mPreviousFile = new File(file.getPath() + PREVIOUS_FILE_SUFFIX);
+
+        if (file.exists()) {
+            mPreviousFile.delete();
+            file.renameTo(mPreviousFile);
+        }
+
+        try {
+            mLog = new FlightLog(file, capacity, NAMES_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open flight recorder file", e);
+        }
+
+        mViewNames = new ViewCountTable();
+        mNameIndexes = new HashMap<String, Integer>();
+    }
+
+    private int getNameIndex(View view) {
+        final int storedIndex = mViewNames.get(view);
+        if (storedIndex != 0) {
+            return storedIndex - NAME_INDEX_SHIFT;
+        }
+
+        final String name = ViewNames.getViewName(view);
+
+        Integer nameIndex = mNameIndexes.get(name);
+        if (nameIndex == null) {
+            nameIndex = mLog.addName(name);
+            mNameIndexes.put(name, nameIndex);
+        }
+
+        mViewNames.put(view, nameIndex + NAME_INDEX_SHIFT);
+        return nameIndex;
+    }
+
+    private long beginCall(View view, int method, long startTime, int arg1, int arg2) {
+        final long sequence = mLog.beginRecord(getNameIndex(view), System.identityHashCode(view),
+                method, mDepth, startTime, arg1, arg2);
+        mDepth++;
+
+        return sequence;
+    }
+
+    private void endCall(long sequence, long startTime) {
+        mDepth--;
+        mLog.endRecord(sequence, System.nanoTime() - startTime);
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        final long startTime = System.nanoTime();
+        final long sequence = beginCall(view, FlightLog.METHOD_ON_MEASURE, startTime,
+                widthMeasureSpec, heightMeasureSpec);
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            endCall(sequence, startTime);
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        final long startTime = System.nanoTime();
+        final long sequence = beginCall(view, FlightLog.METHOD_ON_LAYOUT, startTime,
+                r - l, b - t);
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            endCall(sequence, startTime);
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        final long startTime = System.nanoTime();
+        final long sequence = beginCall(view, FlightLog.METHOD_DRAW, startTime, 0, 0);
+        try {
+            super.draw(view, canvas);
+        } finally {
+            endCall(sequence, startTime);
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        final long startTime = System.nanoTime();
+        final long sequence = beginCall(view, FlightLog.METHOD_ON_DRAW, startTime, 0, 0);
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            endCall(sequence, startTime);
+        }
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        final long startTime = System.nanoTime();
+        final long sequence = beginCall(view, FlightLog.METHOD_REQUEST_LAYOUT, startTime, 0, 0);
+        try {
+            super.requestLayout(view);
+        } finally {
+            endCall(sequence, startTime);
+        }
+    }
+
+    /**
+     * Returns the file the calls are recorded into.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the file recorded by the previous {@link FlightRecorderInterceptor}
+     * using the same file, e.g. in the last app process.
+     */
+    public File getPreviousFile() {
+        return mPreviousFile;
+    }
+
+    /**
+     * Writes the records of a flight recorder file, oldest first, in a human
+     * readable form.
+     */
+    public static void dump(File file, PrintWriter writer) throws IOException {
+        FlightLog.dump(file, writer);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.graphics.Canvas;
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Attributes slow frames to the views that took the most time in them.
+ *
+ * <p>Time spent in intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)}
+ * and {@link View#onDraw(Canvas)} calls is added up per view within each frame.
+ * Frames start with a {@link Choreographer} frame callback, which is only posted
+ * while there are intercepted calls so that idle apps don't get woken up on every
+ * vsync. Frame ends come from {@link TraversalMonitor#postFrameEnd}, so they match
+ * the traversals seen by other interceptors. When a frame goes over the given budget, the views with the highest
+ * exclusive time are added to the interceptor's {@link JankReportStore}.</p>
+ *
+ * <p>Before Jelly Bean, frames start with the first intercepted call and end
+ * with the next main thread message.</p>
+ *
+ * <p>{@link JankInterceptor} should only be used from the UI thread.</p>
+ */
+public class JankInterceptor extends Interceptor {
+    private static final int DEFAULT_FRAME_BUDGET_MILLIS = 16;
+    private static final int DEFAULT_TOP_VIEW_COUNT = 5;
+    private static final int REPORT_STORE_CAPACITY = 64;
+
+    private static final int MAX_VIEWS = 512;
+    private static final int MAX_DEPTH = 256;
+
+    private final long mFrameBudget;
+    private final int mTopViewCount;
+    private final JankReportStore mReportStore;
+
+    // Index of each view in the arrays below, plus one.
+    private final ViewCountTable mViewIndexes;
+
+    private final View[] mViews;
+    private final long[] mInclusiveTimes;
+    private final long[] mExclusiveTimes;
+    private int mViewCount;
+
+    // Views and time spent in nested calls, indexed by depth.
+    private final View[] mViewStack;
+    private final long[] mChildTimeStack;
+    private int mDepth;
+
+    private long mFrameStartTime;
+    private long mLastCallEndTime;
+    private int mCallCount;
+
+    private final TraversalMonitor mMonitor;
+    private final TraversalMonitor.FrameEndCallback mFrameEndCallback;
+    private boolean mFrameScheduled;
+
+    public JankInterceptor() {
+        this(DEFAULT_FRAME_BUDGET_MILLIS);
+    }
+
+    public JankInterceptor(int frameBudgetMillis) {
+        this(frameBudgetMillis, DEFAULT_TOP_VIEW_COUNT);
+    }
+
+    /**
+     * @param frameBudgetMillis the frame duration above which a frame is reported.
+     * @param topViewCount the number of views kept in each report.
+     */
+    public JankInterceptor(int frameBudgetMillis, int topViewCount) {
+        if (frameBudgetMillis <= 0) {
+            throw new IllegalArgumentException("Frame budget should be positive.");
+        }
+
+        if (topViewCount <= 0) {
+            throw new IllegalArgumentException("Top view count should be positive.");
+        }
+
+        mFrameBudget = frameBudgetMillis * 1000000L;
+        mTopViewCount = topViewCount;
+        mReportStore = new JankReportStore(REPORT_STORE_CAPACITY);
+
+        mViewIndexes = new ViewCountTable();
+        mViews = new View[MAX_VIEWS];
+        mInclusiveTimes = new long[MAX_VIEWS];
+        mExclusiveTimes = new long[MAX_VIEWS];
+
+        mViewStack = new View[MAX_DEPTH];
+        mChildTimeStack = new long[MAX_DEPTH];
+
+        mMonitor = TraversalMonitor.getInstance();
+        mFrameEndCallback = new TraversalMonitor.FrameEndCallback() {
+            @Override
+            public void onFrameEnd(long frameTimeNanos) {
+                final boolean active = (mCallCount > 0);
+                endFrame();
+
+                // Keep following frames while there are intercepted calls. Before
+                // Jelly Bean, the next frame starts with the next intercepted call.
+                if (active && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    mFrameStartTime = frameTimeNanos;
+                    scheduleFrame();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the store holding the reports for frames over budget.
+     */
+    public JankReportStore getReportStore() {
+        return mReportStore;
+    }
+
+    private void beginCall(View view) {
+        if (!mFrameScheduled) {
+            // Coming out of idle, the frame's start time is unknown.
+            mFrameStartTime = System.nanoTime();
+            scheduleFrame();
+        }
+
+        if (mDepth < MAX_DEPTH) {
+            mViewStack[mDepth] = view;
+            mChildTimeStack[mDepth] = 0;
+        }
+
+        mDepth++;
+    }
+
+    private void endCall(View view, long startTime, long endTime) {
+        mDepth--;
+
+        final long inclusiveTime = endTime - startTime;
+        final long childTime = (mDepth < MAX_DEPTH ? mChildTimeStack[mDepth] : 0);
+
+        // Calls nested in a call for the same view, e.g. onDraw() within draw(),
+        // are already part of the outer call's inclusive time.
+        final boolean nestedInSameView = (mDepth > 0 && mDepth <= MAX_DEPTH &&
+                mViewStack[mDepth - 1] == view);
+
+        if (mDepth > 0 && mDepth <= MAX_DEPTH) {
+            mChildTimeStack[mDepth - 1] += inclusiveTime;
+        }
+
+        if (mDepth < MAX_DEPTH) {
+            mViewStack[mDepth] = null;
+        }
+
+        mCallCount++;
+        mLastCallEndTime = endTime;
+
+        final int index = findViewIndex(view);
+        if (index >= 0) {
+            if (!nestedInSameView) {
+                mInclusiveTimes[index] += inclusiveTime;
+            }
+            mExclusiveTimes[index] += inclusiveTime - childTime;
+        }
+    }
+
+    /**
+     * Returns the index of the view in the current frame, or -1 if there's
+     * no room for more views.
+     */
+    private int findViewIndex(View view) {
+        final int storedIndex = mViewIndexes.get(view);
+        if (storedIndex > 0) {
+            return storedIndex - 1;
+        }
+
+        if (mViewCount == MAX_VIEWS) {
+            return -1;
+        }
+
+        final int index = mViewCount++;
+        mViews[index] = view;
+        mInclusiveTimes[index] = 0;
+        mExclusiveTimes[index] = 0;
+
+        mViewIndexes.put(view, index + 1);
+        return index;
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            endCall(view, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            endCall(view, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.draw(view, canvas);
+        } finally {
+            endCall(view, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            endCall(view, startTime, System.nanoTime());
+        }
+    }
+
+    private void scheduleFrame() {
+        mFrameScheduled = true;
+        mMonitor.postFrameEnd(mFrameEndCallback);
+    }
+
+    private void endFrame() {
+        mFrameScheduled = false;
+
+        final long frameDuration = mLastCallEndTime - mFrameStartTime;
+        if (mCallCount > 0 && frameDuration > mFrameBudget) {
+            reportFrame(frameDuration);
+        }
+
+        for (int i = 0; i < mViewCount; i++) {
+            mViews[i] = null;
+        }
+
+        mViewIndexes.reset();
+        mViewCount = 0;
+        mCallCount = 0;
+    }
+
+    private void reportFrame(long frameDuration) {
+        final List<JankReport.Entry> entries = new ArrayList<JankReport.Entry>(mTopViewCount);
+
+        // Selection of the views with the highest exclusive time.
+        final boolean[] selected = new boolean[mViewCount];
+        for (int i = 0; i < mTopViewCount && i < mViewCount; i++) {
+            int maxIndex = -1;
+            for (int j = 0; j < mViewCount; j++) {
+                if (!selected[j] &&
+                    (maxIndex < 0 || mExclusiveTimes[j] > mExclusiveTimes[maxIndex])) {
+                    maxIndex = j;
+                }
+            }
+
+            selected[maxIndex] = true;
+            entries.add(new JankReport.Entry(mViews[maxIndex], mInclusiveTimes[maxIndex],
+                    mExclusiveTimes[maxIndex]));
+        }
+
+        mReportStore.add(new JankReport(mFrameStartTime, frameDuration, entries));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A frame that went over its time budget, along with the views that took
+ * the most time in it, as reported by {@link JankInterceptor}.
+ */
+public final class JankReport {
+    /**
+     * Time spent in a view's intercepted calls within the frame.
+     */
+    public static final class Entry {
+        private final String mViewClassName;
+        private final int mViewId;
+        private final long mInclusiveTime;
+        private final long mExclusiveTime;
+
+        Entry(View view, long inclusiveTime, long exclusiveTime) {
+            mViewClassName = ViewNames.getViewClass(view).getName();
+            mViewId = view.getId();
+            mInclusiveTime = inclusiveTime;
+            mExclusiveTime = exclusiveTime;
+        }
+
+        public String getViewClassName() {
+            return mViewClassName;
+        }
+
+        /**
+         * Returns the view's ID, or {@link View#NO_ID}.
+         */
+        public int getViewId() {
+            return mViewId;
+        }
+
+        /**
+         * Returns the total time spent in the view's measure, layout and draw
+         * calls, including its children's, in nanoseconds.
+         */
+        public long getInclusiveTime() {
+            return mInclusiveTime;
+        }
+
+        /**
+         * Returns the time spent in the view's measure, layout and draw calls
+         * minus the time spent in nested intercepted calls, in nanoseconds.
+         */
+        public long getExclusiveTime() {
+            return mExclusiveTime;
+        }
+    }
+
+    private final long mFrameStartTime;
+    private final long mFrameDuration;
+    private final List<Entry> mEntries;
+
+    JankReport(long frameStartTime, long frameDuration, List<Entry> entries) {
+        mFrameStartTime = frameStartTime;
+        mFrameDuration = frameDuration;
+        mEntries = entries;
+    }
+
+    /**
+     * Returns the frame's start time, as returned by {@link System#nanoTime()}.
+     */
+    public long getFrameStartTime() {
+        return mFrameStartTime;
+    }
+
+    /**
+     * Returns the time from the frame's start to the end of its last
+     * intercepted call, in nanoseconds.
+     */
+    public long getFrameDuration() {
+        return mFrameDuration;
+    }
+
+    /**
+     * Returns the views that took the most exclusive time in the frame,
+     * highest first.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(String.format("Frame took %.2fms", mFrameDuration / 1000000.0));
+
+        for (Entry entry : mEntries) {
+            writer.println(String.format("  %s (id=0x%s): %.2fms exclusive, %.2fms inclusive",
+                    entry.mViewClassName, Integer.toHexString(entry.mViewId),
+                    entry.mExclusiveTime / 1000000.0, entry.mInclusiveTime / 1000000.0));
+        }
+    }
+}
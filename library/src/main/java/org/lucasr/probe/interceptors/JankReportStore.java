@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the most recent {@link JankReport}s, up to a fixed number of reports.
+ * Can be queried from any thread.
+ */
+public final class JankReportStore {
+    private final JankReport[] mReports;
+    private int mNextIndex;
+    private int mCount;
+
+    JankReportStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+
+        mReports = new JankReport[capacity];
+    }
+
+    synchronized void add(JankReport report) {
+        mReports[mNextIndex] = report;
+        mNextIndex = (mNextIndex + 1) % mReports.length;
+        if (mCount < mReports.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Returns all the stored reports, oldest first.
+     */
+    public synchronized List<JankReport> getReports() {
+        final List<JankReport> reports = new ArrayList<JankReport>(mCount);
+
+        final int oldestIndex = (mCount < mReports.length ? 0 : mNextIndex);
+        for (int i = 0; i < mCount; i++) {
+            reports.add(mReports[(oldestIndex + i) % mReports.length]);
+        }
+
+        return reports;
+    }
+
+    /**
+     * Returns up to {@code maxCount} reports for frames that started within
+     * the last {@code periodMillis} milliseconds, longest frames first.
+     */
+    public List<JankReport> getWorstFrames(long periodMillis, int maxCount) {
+        final long minStartTime = System.nanoTime() - periodMillis * 1000000L;
+
+        final List<JankReport> reports = new ArrayList<JankReport>();
+        for (JankReport report : getReports()) {
+            if (report.getFrameStartTime() >= minStartTime) {
+                reports.add(report);
+            }
+        }
+
+        Collections.sort(reports, new Comparator<JankReport>() {
+            @Override
+            public int compare(JankReport lhs, JankReport rhs) {
+                final long lhsDuration = lhs.getFrameDuration();
+                final long rhsDuration = rhs.getFrameDuration();
+                return (lhsDuration < rhsDuration ? 1 : (lhsDuration == rhsDuration ? 0 : -1));
+            }
+        });
+
+        return reports.subList(0, Math.min(maxCount, reports.size()));
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mReports.length; i++) {
+            mReports[i] = null;
+        }
+
+        mNextIndex = 0;
+        mCount = 0;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import java.io.PrintWriter;
+
+/**
+ * Named sets of latency histograms, one per view method, stored in primitive
+ * arrays. Recording a value doesn't allocate.
+ *
+ * <p>Histograms have fixed log-linear buckets over microseconds: values under
+ * 32us get their own bucket, larger values are split into 16 buckets per power
+ * of two, which keeps the relative error under 1/16. Values over 16s go into the
+ * last bucket. The exact maximum is kept separately.</p>
+ */
+final class LatencyHistograms {
+    static final int METHOD_ON_MEASURE = 0;
+    static final int METHOD_ON_LAYOUT = 1;
+    static final int METHOD_DRAW = 2;
+    static final int METHOD_COUNT = 3;
+
+    private static final String[] METHOD_NAMES = {
+        "onMeasure",
+        "onLayout",
+        "draw"
+    };
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 24;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2);
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] mNames;
+    private int[][] mCounts;
+    private long[] mTotalCounts;
+    private long[] mMaxValues;
+    private int mCount;
+
+    LatencyHistograms() {
+        mNames = new String[INITIAL_CAPACITY];
+        mCounts = new int[INITIAL_CAPACITY][];
+        mTotalCounts = new long[INITIAL_CAPACITY * METHOD_COUNT];
+        mMaxValues = new long[INITIAL_CAPACITY * METHOD_COUNT];
+    }
+
+    /**
+     * Adds a set of histograms with the given name. Returns its index.
+     */
+    int add(String name) {
+        if (mCount == mNames.length) {
+            final int capacity = mCount * 2;
+
+            final String[] names = new String[capacity];
+            System.arraycopy(mNames, 0, names, 0, mCount);
+            mNames = names;
+
+            final int[][] counts = new int[capacity][];
+            System.arraycopy(mCounts, 0, counts, 0, mCount);
+            mCounts = counts;
+
+            final long[] totalCounts = new long[capacity * METHOD_COUNT];
+            System.arraycopy(mTotalCounts, 0, totalCounts, 0, mCount * METHOD_COUNT);
+            mTotalCounts = totalCounts;
+
+            final long[] maxValues = new long[capacity * METHOD_COUNT];
+            System.arraycopy(mMaxValues, 0, maxValues, 0, mCount * METHOD_COUNT);
+            mMaxValues = maxValues;
+        }
+
+        final int index = mCount++;
+        mNames[index] = name;
+        mCounts[index] = new int[METHOD_COUNT * BUCKET_COUNT];
+
+        return index;
+    }
+
+    String getName(int index) {
+        return mNames[index];
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    void record(int index, int method, long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+
+        mCounts[index][method * BUCKET_COUNT + getBucket(micros)]++;
+
+        final int valueIndex = index * METHOD_COUNT + method;
+        mTotalCounts[valueIndex]++;
+        if (nanos > mMaxValues[valueIndex]) {
+            mMaxValues[valueIndex] = nanos;
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mCount; i++) {
+            final int[] counts = mCounts[i];
+            for (int j = 0; j < counts.length; j++) {
+                counts[j] = 0;
+            }
+        }
+
+        for (int i = 0; i < mCount * METHOD_COUNT; i++) {
+            mTotalCounts[i] = 0;
+            mMaxValues[i] = 0;
+        }
+    }
+
+    private static int getBucket(long micros) {
+        if (micros < 2 * SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+
+        final int shift = (63 - Long.numberOfLeadingZeros(micros)) - SUB_BUCKET_BITS;
+        final int bucket = SUB_BUCKET_COUNT * shift + (int) (micros >>> shift);
+
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the largest value, in microseconds, that goes into the given bucket.
+     */
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+
+        final int shift = bucket / SUB_BUCKET_COUNT - 1;
+        final long subBucket = bucket - SUB_BUCKET_COUNT * shift;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the given percentile of a histogram, in nanoseconds. The value
+     * is the upper bound of its bucket, capped by the maximum value.
+     */
+    long getPercentile(int index, int method, double percentile) {
+        final int valueIndex = index * METHOD_COUNT + method;
+        final long totalCount = mTotalCounts[valueIndex];
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100.0));
+        final int[] counts = mCounts[index];
+        final int offset = method * BUCKET_COUNT;
+
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            count += counts[offset + bucket];
+            if (count >= rank) {
+                return Math.min(getBucketUpperBound(bucket) * 1000 + 999,
+                        mMaxValues[valueIndex]);
+            }
+        }
+
+        return mMaxValues[valueIndex];
+    }
+
+    long getCount(int index, int method) {
+        return mTotalCounts[index * METHOD_COUNT + method];
+    }
+
+    long getMax(int index, int method) {
+        return mMaxValues[index * METHOD_COUNT + method];
+    }
+
+    /**
+     * Writes count, p50, p90, p99 and max for each non-empty histogram.
+     */
+    void dump(PrintWriter writer) {
+        for (int i = 0; i < mCount; i++) {
+            for (int method = 0; method < METHOD_COUNT; method++) {
+                final long count = getCount(i, method);
+                if (count == 0) {
+                    continue;
+                }
+
+                writer.println(String.format("  %-40s %-10s n=%-7d p50=%.3fms p90=%.3fms " +
+                        "p99=%.3fms max=%.3fms", mNames[i], METHOD_NAMES[method], count,
+                        getPercentile(i, method, 50) / 1000000.0,
+                        getPercentile(i, method, 90) / 1000000.0,
+                        getPercentile(i, method, 99) / 1000000.0,
+                        getMax(i, method) / 1000000.0));
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Detects frames with an excessive number of layout requests, typically caused
+ * by views calling {@link View#requestLayout()} from
+ * {@link View#onLayout(boolean, int, int, int, int)} or every time they are bound
+ * to new data.
+ *
+ * <p>{@link View#requestLayout()} and {@link View#forceLayout()} calls are counted
+ * per view until the next frame, as signaled by a {@link Choreographer} frame
+ * callback (or a main thread message before Jelly Bean) through
+ * {@link TraversalMonitor#postFrameEnd}. Stack traces of
+ * {@link View#requestLayout()} calls are sampled into a bounded pool of
+ * {@link Throwable}s, which are handed over to the views with the most requests
+ * in the frame as their counts grow. Capturing a stack still allocates the VM's
+ * backtrace, but at most once per request and only for those views. Frames with
+ * more {@link View#requestLayout()} calls than the given threshold are reported
+ * through {@link OnLayoutStormListener} or logged, along with the frame's
+ * {@link View#forceLayout()} calls.</p>
+ *
+ * <p>{@link LayoutStormInterceptor} should only be used from the UI thread.</p>
+ */
+public class LayoutStormInterceptor extends Interceptor {
+    private static final String TAG = "LayoutStormInterceptor";
+
+    private static final int DEFAULT_MAX_REQUESTS_PER_FRAME = 16;
+    private static final int MAX_VIEWS = 128;
+    private static final int MAX_STACK_SAMPLES = 8;
+
+    /**
+     * Interface definition for a callback invoked when a frame has more layout
+     * requests than the configured threshold.
+     */
+    public interface OnLayoutStormListener {
+        void onLayoutStorm(LayoutStormReport report);
+    }
+
+    /**
+     * Reusable holder for a sampled stack trace. The stack is captured again
+     * every time the holder is reused.
+     */
+    private static final class StackSample extends Throwable {
+        StackSample() {
+            super("Layout requested");
+        }
+    }
+
+    private final int mMaxRequestsPerFrame;
+    private OnLayoutStormListener mListener;
+    private LayoutStormReport mLastReport;
+
+    // Index of each view in the arrays below, plus one.
+    private final ViewCountTable mViewIndexes;
+
+    private final View[] mViews;
+    private final int[] mRequestCounts;
+    private final int[] mForceLayoutCounts;
+    private final int[] mStackSampleIndexes;
+    private int mViewCount;
+    private int mDroppedViewCount;
+
+    private final StackSample[] mStackSamples;
+    // Index of the view each stack sample belongs to.
+    private final int[] mStackSampleViewIndexes;
+    private int mStackSampleCount;
+
+    private int mRequestCount;
+    private int mForceLayoutCount;
+    private int mRequestsDuringLayoutCount;
+
+    private int mRequestDepth;
+    private int mLayoutDepth;
+
+    private final TraversalMonitor mMonitor;
+    private final TraversalMonitor.FrameEndCallback mFrameEndCallback;
+    private boolean mEndScheduled;
+
+    public LayoutStormInterceptor() {
+        this(DEFAULT_MAX_REQUESTS_PER_FRAME);
+    }
+
+    /**
+     * @param maxRequestsPerFrame the number of {@link View#requestLayout()} calls
+     * in a frame above which the frame is reported.
+     */
+    public LayoutStormInterceptor(int maxRequestsPerFrame) {
+        if (maxRequestsPerFrame < 0) {
+            throw new IllegalArgumentException("Max requests per frame should not be negative.");
+        }
+
+        mMaxRequestsPerFrame = maxRequestsPerFrame;
+        mViewIndexes = new ViewCountTable();
+
+        mViews = new View[MAX_VIEWS];
+        mRequestCounts = new int[MAX_VIEWS];
+        mForceLayoutCounts = new int[MAX_VIEWS];
+        mStackSampleIndexes = new int[MAX_VIEWS];
+
+        mStackSampleViewIndexes = new int[MAX_STACK_SAMPLES];
+        mStackSamples = new StackSample[MAX_STACK_SAMPLES];
+        for (int i = 0; i < MAX_STACK_SAMPLES; i++) {
+            mStackSamples[i] = new StackSample();
+        }
+
+        mMonitor = TraversalMonitor.getInstance();
+        mFrameEndCallback = new TraversalMonitor.FrameEndCallback() {
+            @Override
+            public void onFrameEnd(long frameTimeNanos) {
+                endFrame();
+            }
+        };
+    }
+
+    /**
+     * Sets the listener for frames with too many layout requests. If no listener
+     * is set, the reports are logged.
+     */
+    public void setOnLayoutStormListener(OnLayoutStormListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the report for the last frame with too many layout requests,
+     * or {@code null}.
+     */
+    public LayoutStormReport getLastReport() {
+        return mLastReport;
+    }
+
+    /**
+     * Returns the index of the view in the current frame, or -1 if there's
+     * no room for more views.
+     */
+    private int findViewIndex(View view) {
+        final int storedIndex = mViewIndexes.get(view);
+        if (storedIndex > 0) {
+            return storedIndex - 1;
+        }
+
+        if (mViewCount == MAX_VIEWS) {
+            mDroppedViewCount++;
+            return -1;
+        }
+
+        final int index = mViewCount++;
+        mViews[index] = view;
+        mRequestCounts[index] = 0;
+        mForceLayoutCounts[index] = 0;
+        mStackSampleIndexes[index] = -1;
+
+        mViewIndexes.put(view, index + 1);
+        return index;
+    }
+
+    /**
+     * Samples the stack of a layout request from the view at the given index,
+     * if it doesn't have a sample yet. Once all samples are taken, the one from
+     * the view with the fewest requests is handed over if the given view has
+     * more requests.
+     */
+    private void sampleStack(int index) {
+        if (mStackSampleIndexes[index] >= 0) {
+            return;
+        }
+
+        int sampleIndex;
+        if (mStackSampleCount < MAX_STACK_SAMPLES) {
+            sampleIndex = mStackSampleCount++;
+        } else {
+            sampleIndex = 0;
+            for (int i = 1; i < MAX_STACK_SAMPLES; i++) {
+                if (mRequestCounts[mStackSampleViewIndexes[i]] <
+                        mRequestCounts[mStackSampleViewIndexes[sampleIndex]]) {
+                    sampleIndex = i;
+                }
+            }
+
+            final int sampledViewIndex = mStackSampleViewIndexes[sampleIndex];
+            if (mRequestCounts[sampledViewIndex] >= mRequestCounts[index]) {
+                return;
+            }
+
+            mStackSampleIndexes[sampledViewIndex] = -1;
+        }
+
+        mStackSamples[sampleIndex].fillInStackTrace();
+        mStackSampleViewIndexes[sampleIndex] = index;
+        mStackSampleIndexes[index] = sampleIndex;
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        // Intercepted ancestors are called as the request propagates,
+        // only count the original request.
+        if (mRequestDepth == 0) {
+            scheduleEndFrame();
+
+            mRequestCount++;
+            if (mLayoutDepth > 0) {
+                mRequestsDuringLayoutCount++;
+            }
+
+            final int index = findViewIndex(view);
+            if (index >= 0) {
+                mRequestCounts[index]++;
+                sampleStack(index);
+            }
+        }
+
+        mRequestDepth++;
+        try {
+            super.requestLayout(view);
+        } finally {
+            mRequestDepth--;
+        }
+    }
+
+    @Override
+    public void forceLayout(View view) {
+        scheduleEndFrame();
+
+        mForceLayoutCount++;
+
+        final int index = findViewIndex(view);
+        if (index >= 0) {
+            mForceLayoutCounts[index]++;
+        }
+
+        super.forceLayout(view);
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        mLayoutDepth++;
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            mLayoutDepth--;
+        }
+    }
+
+    private void scheduleEndFrame() {
+        if (mEndScheduled) {
+            return;
+        }
+
+        mEndScheduled = true;
+        mMonitor.postFrameEnd(mFrameEndCallback);
+    }
+
+    private void endFrame() {
+        mEndScheduled = false;
+
+        // Forced layouts are mostly made by the framework itself, they're
+        // reported but don't count towards the threshold.
+        if (mRequestCount > mMaxRequestsPerFrame) {
+            reportFrame();
+        }
+
+        for (int i = 0; i < mViewCount; i++) {
+            mViews[i] = null;
+        }
+
+        mViewIndexes.reset();
+        mViewCount = 0;
+        mDroppedViewCount = 0;
+        mStackSampleCount = 0;
+        mRequestCount = 0;
+        mForceLayoutCount = 0;
+        mRequestsDuringLayoutCount = 0;
+    }
+
+    private void reportFrame() {
+        final StackTraceElement[][] stackTraces = new StackTraceElement[mViewCount][];
+        for (int i = 0; i < mViewCount; i++) {
+            final int sampleIndex = mStackSampleIndexes[i];
+            if (sampleIndex >= 0) {
+                stackTraces[i] = mStackSamples[sampleIndex].getStackTrace();
+            }
+        }
+
+        mLastReport = new LayoutStormReport(mViews, mRequestCounts, mForceLayoutCounts,
+                stackTraces, mViewCount, mRequestCount, mForceLayoutCount,
+                mRequestsDuringLayoutCount, mDroppedViewCount);
+
+        if (mListener != null) {
+            mListener.onLayoutStorm(mLastReport);
+        } else {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter writer = new PrintWriter(stringWriter);
+            mLastReport.dump(writer);
+            writer.flush();
+
+            Log.w(TAG, "Too many layout requests in a single frame: " + stringWriter);
+        }
+    }
+}
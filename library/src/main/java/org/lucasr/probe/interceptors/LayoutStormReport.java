@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Layout requests made within a single frame, as reported by
+ * {@link LayoutStormInterceptor}.
+ *
+ * <p>Only the {@link View#requestLayout()} calls made by the views themselves
+ * are counted, not the ones propagated up to their ancestors.</p>
+ */
+public final class LayoutStormReport {
+    /**
+     * A view that requested layout in the frame.
+     */
+    public static final class Entry {
+        private final String mViewClassName;
+        private final int mViewId;
+        private final int mRequestCount;
+        private final int mForceLayoutCount;
+        private final StackTraceElement[] mStackTrace;
+
+        private Entry(View view, int requestCount, int forceLayoutCount,
+                      StackTraceElement[] stackTrace) {
+            mViewClassName = ViewNames.getViewClass(view).getName();
+            mViewId = view.getId();
+            mRequestCount = requestCount;
+            mForceLayoutCount = forceLayoutCount;
+            mStackTrace = stackTrace;
+        }
+
+        public String getViewClassName() {
+            return mViewClassName;
+        }
+
+        /**
+         * Returns the view's ID, or {@link View#NO_ID}.
+         */
+        public int getViewId() {
+            return mViewId;
+        }
+
+        /**
+         * Returns the number of {@link View#requestLayout()} calls.
+         */
+        public int getRequestCount() {
+            return mRequestCount;
+        }
+
+        /**
+         * Returns the number of {@link View#forceLayout()} calls.
+         */
+        public int getForceLayoutCount() {
+            return mForceLayoutCount;
+        }
+
+        /**
+         * Returns the stack trace of one of the view's layout requests in the
+         * frame, or {@code null} if it wasn't sampled. The views with the most
+         * requests are sampled first.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return mStackTrace;
+        }
+    }
+
+    private final int mRequestCount;
+    private final int mForceLayoutCount;
+    private final int mRequestsDuringLayoutCount;
+    private final int mDroppedViewCount;
+    private final List<Entry> mEntries;
+
+    LayoutStormReport(View[] views, int[] requestCounts, int[] forceLayoutCounts,
+                      StackTraceElement[][] stackTraces, int viewCount, int requestCount,
+                      int forceLayoutCount, int requestsDuringLayoutCount,
+                      int droppedViewCount) {
+        mRequestCount = requestCount;
+        mForceLayoutCount = forceLayoutCount;
+        mRequestsDuringLayoutCount = requestsDuringLayoutCount;
+        mDroppedViewCount = droppedViewCount;
+
+        mEntries = new ArrayList<Entry>(viewCount);
+        for (int i = 0; i < viewCount; i++) {
+            mEntries.add(new Entry(views[i], requestCounts[i], forceLayoutCounts[i],
+                    stackTraces[i]));
+        }
+
+        Collections.sort(mEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                if (lhs.mRequestCount != rhs.mRequestCount) {
+                    return rhs.mRequestCount - lhs.mRequestCount;
+                }
+
+                return rhs.mForceLayoutCount - lhs.mForceLayoutCount;
+            }
+        });
+    }
+
+    /**
+     * Returns the total number of {@link View#requestLayout()} calls.
+     */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the total number of {@link View#forceLayout()} calls.
+     */
+    public int getForceLayoutCount() {
+        return mForceLayoutCount;
+    }
+
+    /**
+     * Returns the number of {@link View#requestLayout()} calls made while an
+     * intercepted view was being laid out.
+     */
+    public int getRequestsDuringLayoutCount() {
+        return mRequestsDuringLayoutCount;
+    }
+
+    /**
+     * Returns the views that requested or forced layout, most
+     * {@link View#requestLayout()} calls first.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Returns the number of views that didn't fit in the report.
+     */
+    public int getDroppedViewCount() {
+        return mDroppedViewCount;
+    }
+
+    /**
+     * Prints the report, including the sampled stack traces.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println(mRequestCount + " layout requests (" + mRequestsDuringLayoutCount +
+                " during layout), " + mForceLayoutCount + " forced layouts");
+
+        for (Entry entry : mEntries) {
+            writer.println("  " + entry.mViewClassName + " (id=0x" +
+                    Integer.toHexString(entry.mViewId) + "): " + entry.mRequestCount +
+                    " requests, " + entry.mForceLayoutCount + " forced");
+
+            if (entry.mStackTrace != null) {
+                for (StackTraceElement element : entry.mStackTrace) {
+                    writer.println("        at " + element);
+                }
+            }
+        }
+
+        if (mDroppedViewCount > 0) {
+            writer.println(mDroppedViewCount + " views dropped");
+        }
+    }
+}
@@ -23,8 +23,7 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import org.lucasr.probe.Interceptor;
-
-import java.util.WeakHashMap;
+import org.lucasr.probe.TraversalMonitor;
 
 /**
  * Tints leaf views according to the number of times they got measured in a single
@@ -48,6 +47,13 @@ import java.util.WeakHashMap;
  *     <li><b>Dark red</b> indicates an overmeasure of 4x or more. The {@link View} has been
  *     measured five or more times in a single traversal. This is wrong.</li>
  * </ul>
+ *
+ * <p>By default, traversals are detected automatically in every window through
+ * {@link TraversalMonitor}. Alternatively, pass the ID of the root view of your
+ * layout to restrict the traversal boundaries to it.</p>
+ *
+ * <p>Extra measure passes are attributed to the ancestor views that caused them.
+ * Use {@link #getReport()} to find out which containers should be rewritten.</p>
  */
 public class OvermeasureInterceptor extends Interceptor {
     private static final int NO_OVERMEASURE = 0xFF999999;
@@ -56,14 +62,68 @@ public class OvermeasureInterceptor extends Interceptor {
     private static final int OVERMEASURE_3x = 0xFFFFAAAA;
     private static final int OVERMEASURE_4x = 0xFFFF0000;
 
+    private static final int MAX_DEPTH = 256;
+    private static final int MAX_REMEASURES = 1024;
+
     private final int mRootId;
-    private final WeakHashMap<View, Integer> mMeasureByView;
+    private final TraversalMonitor mMonitor;
+    private int mTraversal;
+
+    private final ViewCountTable mMeasureCounts;
+
+    // Sequence number of the parent's onMeasure() call in which each view
+    // was last measured.
+    private final ViewCountTable mParentCallSeqs;
+
+    // Views in the middle of an onMeasure() call, indexed by depth, along with
+    // their call's sequence number and the depth of the view that caused the
+    // call to be an extra measure (or -1).
+    private final View[] mCallViews;
+    private final int[] mCallSeqs;
+    private final int[] mCallCauses;
+    private int mDepth;
+    private int mLastCallSeq;
+
+    // Extra measures in the current traversal.
+    private final View[] mRemeasureCauses;
+    private final View[] mRemeasureViews;
+    private final int[] mRemeasureWidthSpecs;
+    private final int[] mRemeasureHeightSpecs;
+    private int mRemeasureCount;
+    private int mDroppedRemeasureCount;
 
     private final Paint mTintPaint;
 
+    /**
+     * Creates an {@link OvermeasureInterceptor} that detects the traversal
+     * boundaries of each window automatically.
+     */
+    public OvermeasureInterceptor() {
+        this(View.NO_ID, TraversalMonitor.getInstance());
+    }
+
+    /**
+     * Creates an {@link OvermeasureInterceptor} whose traversals start with
+     * the measure of the view with the given ID.
+     */
     public OvermeasureInterceptor(int rootId) {
+        this(rootId, null);
+    }
+
+    private OvermeasureInterceptor(int rootId, TraversalMonitor monitor) {
         mRootId = rootId;
-        mMeasureByView = new WeakHashMap<View, Integer>();
+        mMonitor = monitor;
+        mMeasureCounts = new ViewCountTable();
+        mParentCallSeqs = new ViewCountTable();
+
+        mCallViews = new View[MAX_DEPTH];
+        mCallSeqs = new int[MAX_DEPTH];
+        mCallCauses = new int[MAX_DEPTH];
+
+        mRemeasureCauses = new View[MAX_REMEASURES];
+        mRemeasureViews = new View[MAX_REMEASURES];
+        mRemeasureWidthSpecs = new int[MAX_REMEASURES];
+        mRemeasureHeightSpecs = new int[MAX_REMEASURES];
         mTintPaint = new Paint();
     }
 
@@ -93,20 +153,107 @@ public class OvermeasureInterceptor extends Interceptor {
         }
     }
 
+    private boolean isTraversalStart(View view) {
+        if (mMonitor == null) {
+            return view.getId() == mRootId;
+        }
+
+        final int traversal = mMonitor.onViewCall(view);
+        if (traversal == TraversalMonitor.NO_TRAVERSAL || traversal == mTraversal) {
+            return false;
+        }
+
+        mTraversal = traversal;
+        return true;
+    }
+
+    private void resetTraversal() {
+        mMeasureCounts.reset();
+        mParentCallSeqs.reset();
+
+        for (int i = 0; i < mRemeasureCount; i++) {
+            mRemeasureCauses[i] = null;
+            mRemeasureViews[i] = null;
+        }
+        mRemeasureCount = 0;
+        mDroppedRemeasureCount = 0;
+    }
+
+    /**
+     * Returns the depth of the view that caused the given view's current measure,
+     * or -1 if it's not an extra measure within the current traversal.
+     */
+    private int findMeasureCause(View view) {
+        if (mDepth == 0 || mDepth > MAX_DEPTH) {
+            return -1;
+        }
+
+        final int parentIndex = mDepth - 1;
+        final int parentCallSeq = mCallSeqs[parentIndex];
+
+        final int lastParentCallSeq = mParentCallSeqs.get(view);
+        mParentCallSeqs.put(view, parentCallSeq);
+
+        // Measured more than once in the same parent call, the parent is to
+        // blame. Otherwise, the parent call itself might be an extra measure.
+        if (lastParentCallSeq == parentCallSeq) {
+            return parentIndex;
+        }
+
+        return mCallCauses[parentIndex];
+    }
+
+    private void addRemeasure(int causeIndex, View view, int widthMeasureSpec,
+                              int heightMeasureSpec) {
+        if (mRemeasureCount == MAX_REMEASURES) {
+            mDroppedRemeasureCount++;
+            return;
+        }
+
+        final int index = mRemeasureCount++;
+        mRemeasureCauses[index] = mCallViews[causeIndex];
+        mRemeasureViews[index] = view;
+        mRemeasureWidthSpecs[index] = widthMeasureSpec;
+        mRemeasureHeightSpecs[index] = heightMeasureSpec;
+    }
+
     @Override
     public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
-        if (view.getId() == mRootId) {
-            mMeasureByView.clear();
+        if (isTraversalStart(view)) {
+            resetTraversal();
         }
 
-        super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        final int causeIndex = findMeasureCause(view);
+        if (mMeasureCounts.increment(view) > 1 && causeIndex >= 0) {
+            addRemeasure(causeIndex, view, widthMeasureSpec, heightMeasureSpec);
+        }
 
-        if (!(view instanceof ViewGroup)) {
-            final Integer measureCount = mMeasureByView.get(view);
-            mMeasureByView.put(view, (measureCount != null ? measureCount : 0) + 1);
+        if (mDepth < MAX_DEPTH) {
+            mCallViews[mDepth] = view;
+            mCallSeqs[mDepth] = ++mLastCallSeq;
+            mCallCauses[mDepth] = causeIndex;
+        }
+        mDepth++;
+
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            mDepth--;
+            if (mDepth < MAX_DEPTH) {
+                mCallViews[mDepth] = null;
+            }
         }
     }
 
+    /**
+     * Returns the attribution of the extra measure passes in the current (or
+     * last completed) layout traversal.
+     */
+    public OvermeasureReport getReport() {
+        return new OvermeasureReport(mRemeasureCauses, mRemeasureViews, mRemeasureWidthSpecs,
+                mRemeasureHeightSpecs, mRemeasureCount, mDroppedRemeasureCount);
+    }
+
     @Override
     public void onDraw(View view, Canvas canvas) {
         super.onDraw(view, canvas);
@@ -115,11 +262,8 @@ public class OvermeasureInterceptor extends Interceptor {
             return;
         }
 
-        if (view.getId() != mRootId) {
-            Integer measureCount = mMeasureByView.get(view);
-            if (measureCount == null) {
-                measureCount = 0;
-            }
+        if (mRootId == View.NO_ID || view.getId() != mRootId) {
+            final int measureCount = mMeasureCounts.get(view);
 
             final int color;
             switch (measureCount) {
@@ -158,7 +302,7 @@ public class OvermeasureInterceptor extends Interceptor {
     public void requestLayout(View view) {
         super.requestLayout(view);
 
-        if (view.getId() == mRootId) {
+        if (mRootId != View.NO_ID && view.getId() == mRootId) {
             // Clear all measure spec caches and make sure all the
             // views will be redrawn.
             forceLayoutRecursive(view);
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.view.ViewParent;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Attributes the extra measure passes in a layout traversal to the ancestor
+ * views that caused them, as reported by {@link OvermeasureInterceptor}.
+ *
+ * <p>An extra measure is attributed to the closest ancestor that measured the
+ * view (or one of the view's ancestors) more than once within a single
+ * {@link View#onMeasure(int, int)} call of its own e.g. a {@code RelativeLayout}
+ * measuring its children twice. Extra measures caused by an ancestor that was
+ * itself measured again are attributed to that ancestor's cause instead.</p>
+ *
+ * <p>Entries form a tree following the view hierarchy, see {@link #getRoots()},
+ * and can be sorted by the number of extra measures they caused, see
+ * {@link #getTopOffenders(int)}.</p>
+ */
+public final class OvermeasureReport {
+    /**
+     * An ancestor view that caused extra measure passes.
+     */
+    public static final class Entry {
+        private final String mViewClassName;
+        private final int mViewId;
+        private final List<Remeasure> mRemeasures;
+        private final List<Entry> mChildren;
+        private Entry mParent;
+        private int mRemeasureCount;
+
+        private Entry(View view) {
+            mViewClassName = view.getClass().getName();
+            mViewId = view.getId();
+            mRemeasures = new ArrayList<Remeasure>();
+            mChildren = new ArrayList<Entry>();
+        }
+
+        public String getViewClassName() {
+            return mViewClassName;
+        }
+
+        /**
+         * Returns the view's ID, or {@link View#NO_ID}.
+         */
+        public int getViewId() {
+            return mViewId;
+        }
+
+        /**
+         * Returns the total number of extra measures caused by this view.
+         */
+        public int getRemeasureCount() {
+            return mRemeasureCount;
+        }
+
+        /**
+         * Returns the descendant views measured more than once because of
+         * this view.
+         */
+        public List<Remeasure> getRemeasures() {
+            return Collections.unmodifiableList(mRemeasures);
+        }
+
+        /**
+         * Returns the closest ancestor entry, or {@code null}.
+         */
+        public Entry getParent() {
+            return mParent;
+        }
+
+        /**
+         * Returns the entries for the closest descendants that also caused
+         * extra measure passes.
+         */
+        public List<Entry> getChildren() {
+            return Collections.unmodifiableList(mChildren);
+        }
+    }
+
+    /**
+     * A view measured more than once because of an {@link Entry}'s view.
+     */
+    public static final class Remeasure {
+        private final String mViewClassName;
+        private final int mViewId;
+        private int mCount;
+        private int[] mMeasureSpecs = new int[4];
+        private int mMeasureSpecCount;
+
+        private Remeasure(View view) {
+            mViewClassName = view.getClass().getName();
+            mViewId = view.getId();
+        }
+
+        private void add(int widthMeasureSpec, int heightMeasureSpec) {
+            mCount++;
+
+            for (int i = 0; i < mMeasureSpecCount; i++) {
+                if (mMeasureSpecs[i * 2] == widthMeasureSpec &&
+                    mMeasureSpecs[i * 2 + 1] == heightMeasureSpec) {
+                    return;
+                }
+            }
+
+            if ((mMeasureSpecCount + 1) * 2 > mMeasureSpecs.length) {
+                final int[] measureSpecs = new int[mMeasureSpecs.length * 2];
+                System.arraycopy(mMeasureSpecs, 0, measureSpecs, 0, mMeasureSpecs.length);
+                mMeasureSpecs = measureSpecs;
+            }
+
+            mMeasureSpecs[mMeasureSpecCount * 2] = widthMeasureSpec;
+            mMeasureSpecs[mMeasureSpecCount * 2 + 1] = heightMeasureSpec;
+            mMeasureSpecCount++;
+        }
+
+        public String getViewClassName() {
+            return mViewClassName;
+        }
+
+        /**
+         * Returns the view's ID, or {@link View#NO_ID}.
+         */
+        public int getViewId() {
+            return mViewId;
+        }
+
+        /**
+         * Returns the number of extra measures.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the number of distinct {@link MeasureSpec} pairs the extra
+         * measures were performed with.
+         */
+        public int getMeasureSpecCount() {
+            return mMeasureSpecCount;
+        }
+
+        public int getWidthMeasureSpec(int index) {
+            checkMeasureSpecIndex(index);
+            return mMeasureSpecs[index * 2];
+        }
+
+        public int getHeightMeasureSpec(int index) {
+            checkMeasureSpecIndex(index);
+            return mMeasureSpecs[index * 2 + 1];
+        }
+
+        private void checkMeasureSpecIndex(int index) {
+            if (index < 0 || index >= mMeasureSpecCount) {
+                throw new IndexOutOfBoundsException("Invalid measure spec index: " + index);
+            }
+        }
+    }
+
+    private final List<Entry> mEntries;
+    private final List<Entry> mRoots;
+    private final int mDroppedCount;
+
+    /**
+     * Builds a report from the given extra measures. Each extra measure is
+     * described by its cause, the remeasured view and its measure specs.
+     */
+    OvermeasureReport(View[] causes, View[] views, int[] widthMeasureSpecs,
+                      int[] heightMeasureSpecs, int count, int droppedCount) {
+        final IdentityHashMap<View, Entry> entriesByView = new IdentityHashMap<View, Entry>();
+        final IdentityHashMap<Entry, IdentityHashMap<View, Remeasure>> remeasuresByEntry =
+                new IdentityHashMap<Entry, IdentityHashMap<View, Remeasure>>();
+
+        mEntries = new ArrayList<Entry>();
+        mRoots = new ArrayList<Entry>();
+        mDroppedCount = droppedCount;
+
+        for (int i = 0; i < count; i++) {
+            Entry entry = entriesByView.get(causes[i]);
+            if (entry == null) {
+                entry = new Entry(causes[i]);
+                entriesByView.put(causes[i], entry);
+                remeasuresByEntry.put(entry, new IdentityHashMap<View, Remeasure>());
+                mEntries.add(entry);
+            }
+
+            final IdentityHashMap<View, Remeasure> remeasuresByView =
+                    remeasuresByEntry.get(entry);
+
+            Remeasure remeasure = remeasuresByView.get(views[i]);
+            if (remeasure == null) {
+                remeasure = new Remeasure(views[i]);
+                remeasuresByView.put(views[i], remeasure);
+                entry.mRemeasures.add(remeasure);
+            }
+
+            remeasure.add(widthMeasureSpecs[i], heightMeasureSpecs[i]);
+            entry.mRemeasureCount++;
+        }
+
+        // Link entries following the view hierarchy.
+        for (View cause : entriesByView.keySet()) {
+            final Entry entry = entriesByView.get(cause);
+
+            ViewParent parent = cause.getParent();
+            while (parent != null && !entriesByView.containsKey(parent)) {
+                parent = parent.getParent();
+            }
+
+            if (parent != null) {
+                entry.mParent = entriesByView.get(parent);
+                entry.mParent.mChildren.add(entry);
+            }
+        }
+
+        for (Entry entry : mEntries) {
+            if (entry.mParent == null) {
+                mRoots.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the entries that have no ancestor entry.
+     */
+    public List<Entry> getRoots() {
+        return Collections.unmodifiableList(mRoots);
+    }
+
+    /**
+     * Returns up to {@code maxCount} entries sorted by the number of extra
+     * measures they caused, highest first.
+     */
+    public List<Entry> getTopOffenders(int maxCount) {
+        final List<Entry> entries = new ArrayList<Entry>(mEntries);
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return rhs.mRemeasureCount - lhs.mRemeasureCount;
+            }
+        });
+
+        return entries.subList(0, Math.min(maxCount, entries.size()));
+    }
+
+    /**
+     * Returns the number of extra measures that didn't fit in the report.
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private static String measureSpecToString(int measureSpec) {
+        final int mode = MeasureSpec.getMode(measureSpec);
+        final int size = MeasureSpec.getSize(measureSpec);
+
+        if (mode == MeasureSpec.EXACTLY) {
+            return "EXACTLY " + size;
+        } else if (mode == MeasureSpec.AT_MOST) {
+            return "AT_MOST " + size;
+        } else {
+            return "UNSPECIFIED " + size;
+        }
+    }
+
+    private static void dumpEntry(PrintWriter writer, Entry entry, String indent) {
+        writer.println(indent + entry.mViewClassName + " (id=0x" +
+                Integer.toHexString(entry.mViewId) + "): " + entry.mRemeasureCount +
+                " extra measures");
+
+        for (Remeasure remeasure : entry.mRemeasures) {
+            writer.print(indent + "  - " + remeasure.mViewClassName + " (id=0x" +
+                    Integer.toHexString(remeasure.mViewId) + ") x" + remeasure.mCount + ":");
+            for (int i = 0; i < remeasure.mMeasureSpecCount; i++) {
+                writer.print(" [" + measureSpecToString(remeasure.getWidthMeasureSpec(i)) +
+                        ", " + measureSpecToString(remeasure.getHeightMeasureSpec(i)) + "]");
+            }
+            writer.println();
+        }
+
+        for (Entry child : entry.mChildren) {
+            dumpEntry(writer, child, indent + "    ");
+        }
+    }
+
+    /**
+     * Prints the report as a tree, followed by the top offenders.
+     */
+    public void dump(PrintWriter writer) {
+        for (Entry root : mRoots) {
+            dumpEntry(writer, root, "");
+        }
+
+        writer.println("Top offenders:");
+        for (Entry entry : getTopOffenders(10)) {
+            writer.println("  " + entry.mViewClassName + " (id=0x" +
+                    Integer.toHexString(entry.mViewId) + "): " + entry.mRemeasureCount);
+        }
+
+        if (mDroppedCount > 0) {
+            writer.println(mDroppedCount + " extra measures dropped");
+        }
+    }
+}
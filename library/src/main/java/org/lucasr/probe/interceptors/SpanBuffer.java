@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+
+import org.lucasr.probe.ViewProxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer single-consumer ring buffer of view method spans. Used to
+ * hand spans recorded on the UI thread over to a background thread without
+ * locking or allocating.
+ *
+ * <p>The producer calls {@link #add(int, View, int, long, long)}. The consumer
+ * reads the spans between {@link #getReadSequence()} and
+ * {@link #getWriteSequence()} and then calls {@link #release(long)} to make
+ * room for new spans. Spans added while the buffer is full are dropped.</p>
+ */
+final class SpanBuffer {
+    static final int TYPE_ON_MEASURE = 0;
+    static final int TYPE_ON_LAYOUT = 1;
+    static final int TYPE_DRAW = 2;
+    static final int TYPE_ON_DRAW = 3;
+    static final int TYPE_REQUEST_LAYOUT = 4;
+    static final int TYPE_TRAVERSAL = 5;
+
+    private final int mMask;
+
+    private final int[] mTypes;
+    private final Class<?>[] mViewClasses;
+    private final int[] mViewIdentities;
+    private final int[] mArgs;
+    private final long[] mStartTimes;
+    private final long[] mEndTimes;
+
+    private final AtomicLong mWriteSequence;
+    private final AtomicLong mReadSequence;
+
+    private volatile long mDroppedCount;
+
+    SpanBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        mMask = size - 1;
+
+        mTypes = new int[size];
+        mViewClasses = new Class<?>[size];
+        mViewIdentities = new int[size];
+        mArgs = new int[size];
+        mStartTimes = new long[size];
+        mEndTimes = new long[size];
+
+        mWriteSequence = new AtomicLong();
+        mReadSequence = new AtomicLong();
+    }
+
+    /**
+     * Adds a span for the given view. Only the view's original class and
+     * identity are kept. Returns {@code false} if the span had to be dropped.
+     */
+    boolean add(int type, View view, int arg, long startTime, long endTime) {
+        final long sequence = mWriteSequence.get();
+        if (sequence - mReadSequence.get() > mMask) {
+            mDroppedCount++;
+            return false;
+        }
+
+        final Class<?> viewClass = view.getClass();
+
+        final int index = (int) sequence & mMask;
+        mTypes[index] = type;
+        mViewClasses[index] =
+                (view instanceof ViewProxy ? viewClass.getSuperclass() : viewClass);
+        mViewIdentities[index] = System.identityHashCode(view);
+        mArgs[index] = arg;
+        mStartTimes[index] = startTime;
+        mEndTimes[index] = endTime;
+
+        // Publish the span to the consumer.
+        mWriteSequence.lazySet(sequence + 1);
+        return true;
+    }
+
+    long getWriteSequence() {
+        return mWriteSequence.get();
+    }
+
+    long getReadSequence() {
+        return mReadSequence.get();
+    }
+
+    /**
+     * Releases all spans up to the given sequence, exclusive.
+     */
+    void release(long sequence) {
+        mReadSequence.lazySet(sequence);
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    int getType(long sequence) {
+        return mTypes[(int) sequence & mMask];
+    }
+
+    Class<?> getViewClass(long sequence) {
+        return mViewClasses[(int) sequence & mMask];
+    }
+
+    int getViewIdentity(long sequence) {
+        return mViewIdentities[(int) sequence & mMask];
+    }
+
+    int getArg(long sequence) {
+        return mArgs[(int) sequence & mMask];
+    }
+
+    long getStartTime(long sequence) {
+        return mStartTimes[(int) sequence & mMask];
+    }
+
+    long getEndTime(long sequence) {
+        return mEndTimes[(int) sequence & mMask];
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.graphics.Canvas;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps latency histograms of the intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)} and {@link View#draw(Canvas)}
+ * calls, keyed by view class and by view ID.
+ *
+ * <p>Histograms are stored in primitive arrays with fixed log-linear buckets, so
+ * recording a call doesn't allocate once a view has been seen. Use
+ * {@link org.lucasr.probe.Probe#dumpStats(java.io.Writer)} or
+ * {@link #dumpStats(PrintWriter)} to get p50, p90, p99 and max latencies per
+ * view class and ID.</p>
+ *
+ * <p>{@link StatsInterceptor} should only be used from the UI thread. Stats
+ * dumped from other threads might be slightly inconsistent.</p>
+ */
+public class StatsInterceptor extends Interceptor {
+    private final LatencyHistograms mClassHistograms;
+    private final LatencyHistograms mIdHistograms;
+
+    private final Map<Class<?>, Integer> mClassIndexes;
+    private final Map<Integer, Integer> mIdIndexes;
+    private int[] mIndexIds;
+
+    // Histogram indexes for each view, plus one.
+    private final ViewCountTable mViewClassIndexes;
+    private final ViewCountTable mViewIdIndexes;
+
+    public StatsInterceptor() {
+        mClassHistograms = new LatencyHistograms();
+        mIdHistograms = new LatencyHistograms();
+
+        mClassIndexes = new HashMap<Class<?>, Integer>();
+        mIdIndexes = new HashMap<Integer, Integer>();
+        mIndexIds = new int[16];
+
+        mViewClassIndexes = new ViewCountTable();
+        mViewIdIndexes = new ViewCountTable();
+    }
+
+    private int getClassIndex(View view) {
+        final int storedIndex = mViewClassIndexes.get(view);
+        if (storedIndex > 0) {
+            return storedIndex - 1;
+        }
+
+        final Class<?> viewClass = ViewNames.getViewClass(view);
+
+        Integer index = mClassIndexes.get(viewClass);
+        if (index == null) {
+            index = mClassHistograms.add(viewClass.getName());
+            mClassIndexes.put(viewClass, index);
+        }
+
+        mViewClassIndexes.put(view, index + 1);
+        return index;
+    }
+
+    /**
+     * Returns the index of the view's ID histograms, or -1 if the view
+     * has no ID.
+     */
+    private int getIdIndex(View view) {
+        final int id = view.getId();
+        if (id == View.NO_ID) {
+            return -1;
+        }
+
+        // Views can change IDs, only trust the cached index if it still matches.
+        final int storedIndex = mViewIdIndexes.get(view);
+        if (storedIndex > 0 && mIndexIds[storedIndex - 1] == id) {
+            return storedIndex - 1;
+        }
+
+        Integer index = mIdIndexes.get(id);
+        if (index == null) {
+            index = mIdHistograms.add(ViewNames.getIdName(view, id));
+            mIdIndexes.put(id, index);
+
+            if (index == mIndexIds.length) {
+                final int[] indexIds = new int[mIndexIds.length * 2];
+                System.arraycopy(mIndexIds, 0, indexIds, 0, mIndexIds.length);
+                mIndexIds = indexIds;
+            }
+            mIndexIds[index] = id;
+        }
+
+        mViewIdIndexes.put(view, index + 1);
+        return index;
+    }
+
+    private void record(View view, int method, long nanos) {
+        mClassHistograms.record(getClassIndex(view), method, nanos);
+
+        final int idIndex = getIdIndex(view);
+        if (idIndex >= 0) {
+            mIdHistograms.record(idIndex, method, nanos);
+        }
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        final long startTime = System.nanoTime();
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            record(view, LatencyHistograms.METHOD_ON_MEASURE, System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        final long startTime = System.nanoTime();
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            record(view, LatencyHistograms.METHOD_ON_LAYOUT, System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        final long startTime = System.nanoTime();
+        try {
+            super.draw(view, canvas);
+        } finally {
+            record(view, LatencyHistograms.METHOD_DRAW, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Discards all recorded latencies.
+     */
+    public void clear() {
+        mClassHistograms.clear();
+        mIdHistograms.clear();
+    }
+
+    @Override
+    public void dumpStats(PrintWriter writer) {
+        writer.println("Latency by view class:");
+        mClassHistograms.dump(writer);
+
+        writer.println("Latency by view ID:");
+        mIdHistograms.dump(writer);
+    }
+}
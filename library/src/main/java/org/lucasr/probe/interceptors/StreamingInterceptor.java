@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)},
+ * {@link View#onDraw(Canvas)} and {@link View#requestLayout()} calls, along with
+ * view tree snapshots, to a host tool connected through a local socket. For
+ * example:
+ * <pre>
+ * adb forward tcp:7777 localabstract:probe_com.example.app
+ * </pre>
+ *
+ * <p>Only clients running as the shell user e.g. forwarded through adb, or as
+ * the app itself, are served. Other connections are closed right away.</p>
+ *
+ * <p>The socket is only opened once {@link #start()} is called. While no client
+ * is connected, calls are not recorded at all. Once a client connects, the UI
+ * thread only records calls into a preallocated ring buffer and takes a view
+ * tree snapshot at most once per second, as traversals start. A background thread
+ * writes them in batches in the format described in {@link EventStreamReader}.
+ * Calls recorded while the buffer is full are dropped.</p>
+ *
+ * <p>{@link StreamingInterceptor} should only be used from the UI thread.</p>
+ */
+public class StreamingInterceptor extends Interceptor {
+    private static final String TAG = "StreamingInterceptor";
+
+    /**
+     * Prefix of the default abstract local socket name, followed by the app's
+     * package name, see {@link #getDefaultSocketName(Context)}.
+     */
+    public static final String DEFAULT_SOCKET_NAME_PREFIX = "probe_";
+
+    // Process.SHELL_UID and Process.ROOT_UID are hidden.
+    private static final int SHELL_UID = 2000;
+    private static final int ROOT_UID = 0;
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final long POLL_INTERVAL_NANOS = 10 * 1000 * 1000;
+    private static final long SNAPSHOT_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    private static final long HEARTBEAT_INTERVAL_NANOS = 1000L * 1000 * 1000;
+    private static final long SERVER_JOIN_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * State of a single {@link #start()} and {@link #stop()} cycle, so that a
+     * server thread winding down never picks up the state of the next one.
+     */
+    static final class Session {
+        volatile boolean mStopped;
+        Thread mThread;
+
+        // Guarded by the interceptor.
+        LocalServerSocket mServerSocket;
+    }
+
+    private final String mSocketName;
+    private final SpanBuffer mBuffer;
+    private final TraversalMonitor mMonitor;
+
+    private final AtomicReference<ViewTreeSnapshot> mPendingSnapshot;
+    private long mLastSnapshotTime;
+    private int mTraversal;
+
+    private volatile boolean mConnected;
+    private volatile boolean mSnapshotRequested;
+
+    // Guarded by this.
+    private Session mSession;
+    private Thread mPreviousServerThread;
+
+    public StreamingInterceptor(Context context) {
+        this(getDefaultSocketName(context));
+    }
+
+    public StreamingInterceptor(String socketName) {
+        this(socketName, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param socketName the name of the abstract local socket to listen on.
+     * @param capacity the number of calls that can be waiting to be written.
+     */
+    public StreamingInterceptor(String socketName, int capacity) {
+        if (socketName == null) {
+            throw new IllegalArgumentException("Socket name should not be null.");
+        }
+
+        mSocketName = socketName;
+        mBuffer = new SpanBuffer(capacity);
+        mMonitor = TraversalMonitor.getInstance();
+        mPendingSnapshot = new AtomicReference<ViewTreeSnapshot>();
+    }
+
+    /**
+     * Returns the default abstract local socket name for the given
+     * {@link Context}'s app, so that apps using Probe don't clash.
+     */
+    public static String getDefaultSocketName(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context should not be null.");
+        }
+
+        return DEFAULT_SOCKET_NAME_PREFIX + context.getPackageName();
+    }
+
+    /**
+     * Opens the local socket and starts serving clients, one at a time,
+     * from a background thread.
+     */
+    public synchronized void start() {
+        if (mSession != null) {
+            return;
+        }
+
+        final Session session = new Session();
+        final Thread previousThread = mPreviousServerThread;
+
+        session.mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                // The previous session has to release the socket name first.
+                if (previousThread != null) {
+                    try {
+                        previousThread.join(SERVER_JOIN_TIMEOUT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                serve(session);
+            }
+        }, "ProbeStreamServer");
+        session.mThread.setDaemon(true);
+
+        mSession = session;
+        session.mThread.start();
+    }
+
+    /**
+     * Disconnects the current client, if any, and closes the local socket.
+     */
+    public synchronized void stop() {
+        final Session session = mSession;
+        if (session == null) {
+            return;
+        }
+
+        mSession = null;
+        mPreviousServerThread = session.mThread;
+
+        session.mStopped = true;
+        mConnected = false;
+
+        // If the socket isn't open yet, serve() closes it as soon as it is.
+        if (session.mServerSocket != null) {
+            // Closing the server socket doesn't always wake up accept().
+            wakeUpServer();
+
+            try {
+                session.mServerSocket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+
+        LockSupport.unpark(session.mThread);
+    }
+
+    private void wakeUpServer() {
+        final LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(mSocketName));
+        } catch (IOException e) {
+            // Server already gone.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Returns whether a client is connected.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Returns the number of calls dropped because the background thread
+     * couldn't keep up.
+     */
+    public long getDroppedCount() {
+        return mBuffer.getDroppedCount();
+    }
+
+    private void beginCall(View view, long startTime) {
+        final int traversal = mMonitor.onViewCall(view);
+        if (traversal == TraversalMonitor.NO_TRAVERSAL || traversal == mTraversal) {
+            return;
+        }
+
+        mTraversal = traversal;
+
+        final View rootView = view.getRootView();
+        mBuffer.add(SpanBuffer.TYPE_TRAVERSAL, rootView, traversal, startTime, startTime);
+
+        if (mSnapshotRequested || startTime - mLastSnapshotTime >= SNAPSHOT_INTERVAL_NANOS) {
+            mSnapshotRequested = false;
+            mLastSnapshotTime = startTime;
+            mPendingSnapshot.set(ViewTreeSnapshot.capture(rootView, traversal));
+        }
+    }
+
+    private void endCall(View view, int type, long startTime, long endTime) {
+        if (mConnected) {
+            mBuffer.add(type, view, view.getId(), startTime, endTime);
+        }
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        if (!mConnected) {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_MEASURE, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        if (!mConnected) {
+            super.onLayout(view, changed, l, t, r, b);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_LAYOUT, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        if (!mConnected) {
+            super.draw(view, canvas);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.draw(view, canvas);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        if (!mConnected) {
+            super.onDraw(view, canvas);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        if (!mConnected) {
+            super.requestLayout(view);
+            return;
+        }
+
+        // Requests can happen outside traversals, don't start one here.
+        final long startTime = System.nanoTime();
+        try {
+            super.requestLayout(view);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_REQUEST_LAYOUT, startTime, System.nanoTime());
+        }
+    }
+
+    private void serve(Session session) {
+        final LocalServerSocket serverSocket;
+        try {
+            serverSocket = new LocalServerSocket(mSocketName);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open local socket " + mSocketName, e);
+            return;
+        }
+
+        synchronized (this) {
+            // stop() was called before the socket was opened.
+            if (session.mStopped) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+                return;
+            }
+
+            session.mServerSocket = serverSocket;
+        }
+
+        while (!session.mStopped) {
+            LocalSocket socket = null;
+            try {
+                socket = serverSocket.accept();
+
+                // Either woken up by stop() or an untrusted client.
+                if (session.mStopped || !isTrustedClient(socket)) {
+                    continue;
+                }
+
+                streamEvents(socket.getOutputStream(), session);
+            } catch (IOException e) {
+                if (!session.mStopped) {
+                    Log.i(TAG, "Client disconnected: " + e.getMessage());
+                }
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Abstract sockets can be connected to by any app, only serve the shell
+     * user and the app itself.
+     */
+    private static boolean isTrustedClient(LocalSocket socket) throws IOException {
+        final int uid = socket.getPeerCredentials().getUid();
+        if (uid == SHELL_UID || uid == ROOT_UID || uid == Process.myUid()) {
+            return true;
+        }
+
+        Log.w(TAG, "Rejected client with uid " + uid);
+        return false;
+    }
+
+    /**
+     * Writes events to the given stream until the client disconnects or the
+     * given session is stopped. A heartbeat frame is written after each second
+     * without events, so that a disconnected client makes it fail even while
+     * the UI is idle.
+     */
+    void streamEvents(OutputStream out, Session session) throws IOException {
+        final EventStreamWriter writer =
+                new EventStreamWriter(new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE));
+
+        try {
+            // Discard calls recorded for a previous client.
+            mBuffer.release(mBuffer.getWriteSequence());
+            mPendingSnapshot.set(null);
+
+            writer.writeHello(Process.myPid());
+            writer.flush();
+
+            mSnapshotRequested = true;
+            mConnected = true;
+
+            long lastWriteTime = System.nanoTime();
+            while (!session.mStopped) {
+                boolean wroteEvents = false;
+
+                final ViewTreeSnapshot snapshot = mPendingSnapshot.getAndSet(null);
+                if (snapshot != null) {
+                    writer.writeSnapshot(snapshot);
+                    wroteEvents = true;
+                }
+
+                final long readSequence = mBuffer.getReadSequence();
+                final long writeSequence = mBuffer.getWriteSequence();
+
+                if (readSequence < writeSequence) {
+                    writer.writeSpans(mBuffer, readSequence, writeSequence);
+                    mBuffer.release(writeSequence);
+                    wroteEvents = true;
+                }
+
+                final long now = System.nanoTime();
+                if (wroteEvents) {
+                    lastWriteTime = now;
+                    continue;
+                }
+
+                if (now - lastWriteTime >= HEARTBEAT_INTERVAL_NANOS) {
+                    writer.writeHeartbeat();
+                    lastWriteTime = now;
+                }
+
+                writer.flush();
+                LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+            }
+
+            writer.flush();
+        } finally {
+            // Once stopped, a new session might already have a client.
+            if (!session.mStopped) {
+                mConnected = false;
+            }
+        }
+    }
+}
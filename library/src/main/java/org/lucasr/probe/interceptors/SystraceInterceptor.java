@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Trace;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Wraps intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)},
+ * {@link View#onDraw(Canvas)} and {@link View#requestLayout()} calls in
+ * {@link Trace} sections so that they show up in systrace and Perfetto traces.
+ * Sections are labeled with the view's class, ID and method, for example
+ * {@code FeedItemView#title.onMeasure}.
+ *
+ * <p>Labels are built once per view and cached, so tracing a call doesn't
+ * allocate. Use {@link #setMaxDepth(int)}, {@link #setSampleInterval(int)} and
+ * {@link #setMaxSectionsPerTraversal(int)} to keep the number of sections in
+ * each frame under control.</p>
+ *
+ * <p>Sections are only emitted on Jelly Bean MR2 and above.
+ * {@link SystraceInterceptor} should only be used from the UI thread.</p>
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class SystraceInterceptor extends Interceptor {
+    private static final boolean TRACE_SUPPORTED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private static final int DEFAULT_MAX_SECTIONS_PER_TRAVERSAL = 2000;
+
+    // Trace section names longer than this are rejected.
+    private static final int MAX_LABEL_LENGTH = 127;
+
+    private static final int LABEL_ON_MEASURE = 0;
+    private static final int LABEL_ON_LAYOUT = 1;
+    private static final int LABEL_DRAW = 2;
+    private static final int LABEL_ON_DRAW = 3;
+    private static final int LABEL_REQUEST_LAYOUT = 4;
+
+    private static final String[] METHOD_NAMES = {
+        ".onMeasure",
+        ".onLayout",
+        ".draw",
+        ".onDraw",
+        ".requestLayout"
+    };
+
+    private final TraversalMonitor mMonitor;
+    private final Map<View, String[]> mLabels;
+
+    private int mMaxDepth;
+    private int mSampleInterval;
+    private int mMaxSectionsPerTraversal;
+
+    private int mDepth;
+    private int mTraversal;
+    private int mSectionCount;
+
+    public SystraceInterceptor() {
+        mMonitor = TraversalMonitor.getInstance();
+        mLabels = new WeakHashMap<View, String[]>();
+
+        mMaxDepth = Integer.MAX_VALUE;
+        mSampleInterval = 1;
+        mMaxSectionsPerTraversal = DEFAULT_MAX_SECTIONS_PER_TRAVERSAL;
+    }
+
+    /**
+     * Only emits sections for calls nested in fewer than the given number of
+     * intercepted calls. Defaults to no limit.
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("Max depth should be positive.");
+        }
+
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Only emits sections for one in every {@code interval} layout traversals.
+     * Defaults to every traversal.
+     */
+    public void setSampleInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Sample interval should be positive.");
+        }
+
+        mSampleInterval = interval;
+    }
+
+    /**
+     * Stops emitting sections in a layout traversal once it has the given
+     * number of sections. Defaults to 2000.
+     */
+    public void setMaxSectionsPerTraversal(int maxSections) {
+        if (maxSections <= 0) {
+            throw new IllegalArgumentException("Max sections should be positive.");
+        }
+
+        mMaxSectionsPerTraversal = maxSections;
+    }
+
+    private boolean beginSection(View view, int label, boolean startsTraversal) {
+        if (!TRACE_SUPPORTED) {
+            return false;
+        }
+
+        if (startsTraversal) {
+            final int traversal = mMonitor.onViewCall(view);
+            if (traversal != mTraversal) {
+                mTraversal = traversal;
+                mSectionCount = 0;
+            }
+        }
+
+        if (mDepth >= mMaxDepth ||
+            mTraversal % mSampleInterval != 0 ||
+            mSectionCount >= mMaxSectionsPerTraversal) {
+            return false;
+        }
+
+        mSectionCount++;
+        Trace.beginSection(getLabel(view, label));
+        return true;
+    }
+
+    private String getLabel(View view, int label) {
+        String[] labels = mLabels.get(view);
+        if (labels == null) {
+            labels = createLabels(view);
+            mLabels.put(view, labels);
+        }
+
+        return labels[label];
+    }
+
+    private static String[] createLabels(View view) {
+        final String prefix = ViewNames.getViewName(view);
+
+        final String[] labels = new String[METHOD_NAMES.length];
+        for (int i = 0; i < labels.length; i++) {
+            String label = prefix + METHOD_NAMES[i];
+            if (label.length() > MAX_LABEL_LENGTH) {
+                label = label.substring(0, MAX_LABEL_LENGTH);
+            }
+
+            // Views with the same class and ID share their labels.
+            labels[i] = label.intern();
+        }
+
+        return labels;
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        final boolean traced = beginSection(view, LABEL_ON_MEASURE, true);
+        mDepth++;
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            mDepth--;
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        final boolean traced = beginSection(view, LABEL_ON_LAYOUT, true);
+        mDepth++;
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            mDepth--;
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        final boolean traced = beginSection(view, LABEL_DRAW, true);
+        mDepth++;
+        try {
+            super.draw(view, canvas);
+        } finally {
+            mDepth--;
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        final boolean traced = beginSection(view, LABEL_ON_DRAW, true);
+        mDepth++;
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            mDepth--;
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        // Requests can happen outside traversals, don't start one here.
+        final boolean traced = beginSection(view, LABEL_REQUEST_LAYOUT, false);
+        mDepth++;
+        try {
+            super.requestLayout(view);
+        } finally {
+            mDepth--;
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+    }
+}
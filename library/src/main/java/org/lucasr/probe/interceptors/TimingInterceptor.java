@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.graphics.Canvas;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+/**
+ * Records how long each intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)}
+ * and {@link View#onDraw(Canvas)} call takes.
+ *
+ * <p>Records are written into preallocated ring buffers of primitives so that
+ * timing a call doesn't allocate. Once the buffers are full, the oldest records
+ * are overwritten. Each record holds the view's identity, the intercepted method,
+ * its nesting depth and the start and end times as returned by
+ * {@link System#nanoTime()}.</p>
+ *
+ * <p>Records are written when the intercepted call returns, which means children
+ * are always recorded before their parents. {@link #getExclusiveTime(int)}
+ * subtracts the time spent in nested intercepted calls from a record's
+ * inclusive time.</p>
+ *
+ * <p>Records are tagged with the layout traversal they belong to, as detected
+ * by {@link TraversalMonitor}. Use {@link #getTraversal(int)} to group the
+ * records of a single traversal.</p>
+ *
+ * <p>{@link TimingInterceptor} should only be used from the UI thread.</p>
+ */
+public class TimingInterceptor extends Interceptor {
+    public static final int METHOD_ON_MEASURE = 0;
+    public static final int METHOD_ON_LAYOUT = 1;
+    public static final int METHOD_DRAW = 2;
+    public static final int METHOD_ON_DRAW = 3;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_DEPTH = 256;
+
+    private final int mCapacity;
+    private final TraversalMonitor mMonitor;
+
+    private final int[] mViewIdentities;
+    private final int[] mViewIds;
+    private final byte[] mMethods;
+    private final short[] mDepths;
+    private final int[] mTraversals;
+    private final long[] mStartTimes;
+    private final long[] mEndTimes;
+    private final long[] mChildTimes;
+
+    // Time spent in nested calls, indexed by depth.
+    private final long[] mChildTimeStack;
+
+    // Traversal of the calls in progress, indexed by depth.
+    private final int[] mTraversalStack;
+
+    private int mDepth;
+    private int mNextIndex;
+    private int mCount;
+
+    public TimingInterceptor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TimingInterceptor(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+
+        mCapacity = capacity;
+        mMonitor = TraversalMonitor.getInstance();
+
+        mViewIdentities = new int[capacity];
+        mViewIds = new int[capacity];
+        mMethods = new byte[capacity];
+        mDepths = new short[capacity];
+        mTraversals = new int[capacity];
+        mStartTimes = new long[capacity];
+        mEndTimes = new long[capacity];
+        mChildTimes = new long[capacity];
+
+        mChildTimeStack = new long[MAX_DEPTH];
+        mTraversalStack = new int[MAX_DEPTH];
+    }
+
+    private void beginCall(View view) {
+        final int traversal = mMonitor.onViewCall(view);
+
+        if (mDepth < MAX_DEPTH) {
+            mChildTimeStack[mDepth] = 0;
+            mTraversalStack[mDepth] = traversal;
+        }
+
+        mDepth++;
+    }
+
+    private void endCall(View view, int method, long startTime, long endTime) {
+        mDepth--;
+
+        final long inclusiveTime = endTime - startTime;
+        final long childTime = (mDepth < MAX_DEPTH ? mChildTimeStack[mDepth] : 0);
+        final int traversal = (mDepth < MAX_DEPTH ? mTraversalStack[mDepth] :
+                mTraversalStack[MAX_DEPTH - 1]);
+
+        if (mDepth > 0 && mDepth <= MAX_DEPTH) {
+            mChildTimeStack[mDepth - 1] += inclusiveTime;
+        }
+
+        final int index = mNextIndex;
+        mViewIdentities[index] = System.identityHashCode(view);
+        mViewIds[index] = view.getId();
+        mMethods[index] = (byte) method;
+        mDepths[index] = (short) Math.min(mDepth, Short.MAX_VALUE);
+        mTraversals[index] = traversal;
+        mStartTimes[index] = startTime;
+        mEndTimes[index] = endTime;
+        mChildTimes[index] = childTime;
+
+        mNextIndex = (index + 1 == mCapacity ? 0 : index + 1);
+        if (mCount < mCapacity) {
+            mCount++;
+        }
+    }
+
+    private int toBufferIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Invalid record index: " + index);
+        }
+
+        final int oldestIndex = (mCount < mCapacity ? 0 : mNextIndex);
+        return (oldestIndex + index) % mCapacity;
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            endCall(view, METHOD_ON_MEASURE, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            endCall(view, METHOD_ON_LAYOUT, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.draw(view, canvas);
+        } finally {
+            endCall(view, METHOD_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        beginCall(view);
+        final long startTime = System.nanoTime();
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            endCall(view, METHOD_ON_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns the maximum number of records kept by this interceptor.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of available records. Record indexes go from the
+     * oldest (0) to the most recent ({@code getRecordCount() - 1}) record.
+     */
+    public int getRecordCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns {@link System#identityHashCode(Object)} for the recorded view.
+     */
+    public int getViewIdentity(int index) {
+        return mViewIdentities[toBufferIndex(index)];
+    }
+
+    /**
+     * Returns the ID of the recorded view, or {@link View#NO_ID}.
+     */
+    public int getViewId(int index) {
+        return mViewIds[toBufferIndex(index)];
+    }
+
+    /**
+     * Returns the recorded method, one of {@link #METHOD_ON_MEASURE},
+     * {@link #METHOD_ON_LAYOUT}, {@link #METHOD_DRAW} or {@link #METHOD_ON_DRAW}.
+     */
+    public int getMethod(int index) {
+        return mMethods[toBufferIndex(index)];
+    }
+
+    /**
+     * Returns the number of intercepted calls the recorded call was nested in.
+     */
+    public int getDepth(int index) {
+        return mDepths[toBufferIndex(index)];
+    }
+
+    /**
+     * Returns the number of the traversal the recorded call belongs to, or
+     * {@link TraversalMonitor#NO_TRAVERSAL} if the view was not attached to
+     * a window. Traversal numbers increase with each new traversal.
+     */
+    public int getTraversal(int index) {
+        return mTraversals[toBufferIndex(index)];
+    }
+
+    public long getStartTime(int index) {
+        return mStartTimes[toBufferIndex(index)];
+    }
+
+    public long getEndTime(int index) {
+        return mEndTimes[toBufferIndex(index)];
+    }
+
+    /**
+     * Returns the total time spent in the recorded call, in nanoseconds.
+     */
+    public long getInclusiveTime(int index) {
+        final int bufferIndex = toBufferIndex(index);
+        return mEndTimes[bufferIndex] - mStartTimes[bufferIndex];
+    }
+
+    /**
+     * Returns the time spent in the recorded call minus the time spent in
+     * nested intercepted calls, in nanoseconds.
+     */
+    public long getExclusiveTime(int index) {
+        final int bufferIndex = toBufferIndex(index);
+        return mEndTimes[bufferIndex] - mStartTimes[bufferIndex] - mChildTimes[bufferIndex];
+    }
+
+    /**
+     * Discards all records.
+     */
+    public void clear() {
+        mNextIndex = 0;
+        mCount = 0;
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+
+import org.lucasr.probe.Interceptor;
+import org.lucasr.probe.TraversalMonitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams intercepted {@link View#onMeasure(int, int)},
+ * {@link View#onLayout(boolean, int, int, int, int)}, {@link View#draw(Canvas)},
+ * {@link View#onDraw(Canvas)} and {@link View#requestLayout()} calls to a file
+ * in the Chrome trace event format. The file can be opened in Perfetto UI or
+ * {@code chrome://tracing}.
+ *
+ * <p>Each call is written as a complete event named after the view's class and
+ * the intercepted method, so nested calls show up as nested spans. The start of
+ * each layout traversal, as detected by {@link TraversalMonitor}, is written as
+ * an instant event. Timestamps come from {@link System#nanoTime()}, which uses the
+ * same clock as the kernel's trace events.</p>
+ *
+ * <p>The UI thread only records the calls into a preallocated ring buffer. Events
+ * are serialized to the file from a background thread, which is woken up as
+ * traversals end or when the buffer fills up, and stays parked while the app
+ * is idle. Calls recorded while the buffer is full are dropped, see
+ * {@link #getDroppedCount()}. The file stays loadable even if {@link #close()}
+ * is never called.</p>
+ *
+ * <p>{@link TraceEventInterceptor} should only be used from the UI thread.</p>
+ */
+public class TraceEventInterceptor extends Interceptor {
+    private static final String TAG = "TraceEventInterceptor";
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final String[] METHOD_NAMES = {
+        "onMeasure",
+        "onLayout",
+        "draw",
+        "onDraw",
+        "requestLayout"
+    };
+
+    private final File mFile;
+    private final SpanBuffer mBuffer;
+    private final TraversalMonitor mMonitor;
+    private final TraversalMonitor.Listener mTraversalListener;
+    private final Thread mWriterThread;
+
+    // Number of pending calls above which the writer is woken up
+    // before the traversal ends.
+    private final int mWakeUpThreshold;
+
+    private final int mPid;
+    private volatile int mTid;
+    private volatile boolean mClosed;
+    private volatile boolean mWriterParked;
+
+    private int mTraversal;
+
+    // Only accessed from the writer thread.
+    private final Map<Class<?>, String> mClassNames;
+
+    /**
+     * Creates a {@link TraceEventInterceptor} writing to a file with the given
+     * name in the app's private files directory.
+     */
+    public TraceEventInterceptor(Context context, String fileName) {
+        this(new File(context.getFilesDir(), fileName));
+    }
+
+    public TraceEventInterceptor(File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of calls that can be waiting to be written.
+     */
+    public TraceEventInterceptor(File file, int capacity) {
+        if (file == null) {
+            throw new IllegalArgumentException("File should not be null.");
+        }
+
+        mFile = file;
+        mBuffer = new SpanBuffer(capacity);
+        mMonitor = TraversalMonitor.getInstance();
+        mWakeUpThreshold = Math.max(1, capacity / 2);
+        mPid = Process.myPid();
+        mClassNames = new HashMap<Class<?>, String>();
+
+        mTraversalListener = new TraversalMonitor.Listener() {
+            @Override
+            public void onTraversalStart(View rootView) {
+            }
+
+            @Override
+            public void onTraversalEnd(View rootView) {
+                // Write the traversal's events once it's done.
+                LockSupport.unpark(mWriterThread);
+            }
+        };
+        mMonitor.addListener(mTraversalListener);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeEvents();
+            }
+        }, "ProbeTraceWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    private void beginCall(View view, long startTime) {
+        if (mClosed) {
+            return;
+        }
+
+        if (mTid == 0) {
+            mTid = Process.myTid();
+        }
+
+        final int traversal = mMonitor.onViewCall(view);
+        if (traversal != TraversalMonitor.NO_TRAVERSAL && traversal != mTraversal) {
+            mTraversal = traversal;
+            mBuffer.add(SpanBuffer.TYPE_TRAVERSAL, view.getRootView(), traversal,
+                    startTime, startTime);
+        }
+    }
+
+    private void endCall(View view, int type, long startTime, long endTime) {
+        if (mClosed) {
+            return;
+        }
+
+        mBuffer.add(type, view, view.getId(), startTime, endTime);
+
+        // Don't wait for the traversal to end if the buffer is filling up.
+        if (mWriterParked &&
+                mBuffer.getWriteSequence() - mBuffer.getReadSequence() >= mWakeUpThreshold) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    @Override
+    public void onMeasure(View view, int widthMeasureSpec, int heightMeasureSpec) {
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onMeasure(view, widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_MEASURE, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onLayout(View view, boolean changed, int l, int t, int r, int b) {
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onLayout(view, changed, l, t, r, b);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_LAYOUT, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void draw(View view, Canvas canvas) {
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.draw(view, canvas);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void onDraw(View view, Canvas canvas) {
+        final long startTime = System.nanoTime();
+        beginCall(view, startTime);
+        try {
+            super.onDraw(view, canvas);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_ON_DRAW, startTime, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void requestLayout(View view) {
+        // Requests can happen outside traversals, don't start one here.
+        final long startTime = System.nanoTime();
+        try {
+            super.requestLayout(view);
+        } finally {
+            endCall(view, SpanBuffer.TYPE_REQUEST_LAYOUT, startTime, System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns the file the trace events are written to.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the number of calls dropped because the background thread
+     * couldn't keep up.
+     */
+    public long getDroppedCount() {
+        return mBuffer.getDroppedCount();
+    }
+
+    /**
+     * Stops recording calls. The pending events are written and the file is
+     * closed from the background thread.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+        mMonitor.removeListener(mTraversalListener);
+        LockSupport.unpark(mWriterThread);
+    }
+
+    private void writeEvents() {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mFile), "UTF-8"));
+            writer.write("[");
+
+            boolean firstEvent = true;
+            while (true) {
+                // Read before draining so that events added right before
+                // close() are still written.
+                final boolean closed = mClosed;
+
+                final long readSequence = mBuffer.getReadSequence();
+                final long writeSequence = mBuffer.getWriteSequence();
+
+                for (long sequence = readSequence; sequence < writeSequence; sequence++) {
+                    writer.write(firstEvent ? "\n" : ",\n");
+                    writeEvent(writer, sequence);
+                    firstEvent = false;
+                }
+
+                mBuffer.release(writeSequence);
+
+                if (readSequence == writeSequence) {
+                    if (closed) {
+                        break;
+                    }
+
+                    writer.flush();
+                    parkUntilWokenUp();
+                }
+            }
+
+            writer.write("\n]\n");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write trace events to " + mFile, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+
+        final long droppedCount = mBuffer.getDroppedCount();
+        if (droppedCount > 0) {
+            Log.w(TAG, "Dropped " + droppedCount + " trace events");
+        }
+    }
+
+    /**
+     * Parks the writer thread until there are calls to write, see
+     * {@link #endCall(View, int, long, long)} and {@link #close()}.
+     */
+    private void parkUntilWokenUp() {
+        mWriterParked = true;
+
+        // Re-check once the flag is visible, so that a call recorded in
+        // between doesn't wait for the next wake-up.
+        if (!mClosed && mBuffer.getReadSequence() == mBuffer.getWriteSequence()) {
+            LockSupport.park(this);
+        }
+
+        mWriterParked = false;
+    }
+
+    private void writeEvent(Writer writer, long sequence) throws IOException {
+        final int type = mBuffer.getType(sequence);
+        final String className = getClassName(mBuffer.getViewClass(sequence));
+        final long startTime = mBuffer.getStartTime(sequence);
+
+        if (type == SpanBuffer.TYPE_TRAVERSAL) {
+            writer.write("{\"name\":\"Traversal ");
+            writer.write(Integer.toString(mBuffer.getArg(sequence)));
+            writer.write("\",\"cat\":\"probe\",\"ph\":\"i\",\"s\":\"p\",\"ts\":");
+            writeMicros(writer, startTime);
+        } else {
+            writer.write("{\"name\":\"");
+            writer.write(className);
+            writer.write('.');
+            writer.write(METHOD_NAMES[type]);
+            writer.write("\",\"cat\":\"probe\",\"ph\":\"X\",\"ts\":");
+            writeMicros(writer, startTime);
+            writer.write(",\"dur\":");
+            writeMicros(writer, mBuffer.getEndTime(sequence) - startTime);
+        }
+
+        writer.write(",\"pid\":");
+        writer.write(Integer.toString(mPid));
+        writer.write(",\"tid\":");
+        writer.write(Integer.toString(mTid));
+
+        writer.write(",\"args\":{\"view\":\"");
+        writer.write(className);
+        writer.write('@');
+        writer.write(Integer.toHexString(mBuffer.getViewIdentity(sequence)));
+        writer.write('"');
+
+        final int viewId = mBuffer.getArg(sequence);
+        if (type != SpanBuffer.TYPE_TRAVERSAL && viewId != View.NO_ID) {
+            writer.write(",\"id\":\"0x");
+            writer.write(Integer.toHexString(viewId));
+            writer.write('"');
+        }
+
+        writer.write("}}");
+    }
+
+    private static void writeMicros(Writer writer, long nanos) throws IOException {
+        writer.write(Long.toString(nanos / 1000));
+        writer.write('.');
+
+        final String fraction = Long.toString(nanos % 1000);
+        for (int i = fraction.length(); i < 3; i++) {
+            writer.write('0');
+        }
+        writer.write(fraction);
+    }
+
+    private String getClassName(Class<?> viewClass) {
+        String className = mClassNames.get(viewClass);
+        if (className == null) {
+            className = viewClass.getSimpleName();
+            if (className.length() == 0) {
+                className = viewClass.getName();
+            }
+
+            mClassNames.put(viewClass, className);
+        }
+
+        return className;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Per-view int counters keyed by {@link View} identity. Counters are reset in
+ * constant time by bumping a generation number instead of clearing the table.
+ *
+ * <p>Views are held through weak references which are only allocated the first
+ * time a view is seen. Looking up and incrementing counters for known views
+ * doesn't allocate or box. Entries for garbage collected views are dropped
+ * when the table grows.</p>
+ *
+ * <p>{@link ViewCountTable} is not thread-safe.</p>
+ */
+final class ViewCountTable {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private WeakReference<View>[] mKeys;
+    private int[] mHashes;
+    private int[] mCounts;
+    private int[] mGenerations;
+
+    private int mSize;
+    private int mGeneration = 1;
+
+    ViewCountTable() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        mKeys = (WeakReference<View>[]) new WeakReference[capacity];
+        mHashes = new int[capacity];
+        mCounts = new int[capacity];
+        mGenerations = new int[capacity];
+        mSize = 0;
+    }
+
+    private static int mix(int hash) {
+        // Identity hash codes tend to have poor low bits.
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the slot holding the given view, or the empty slot where it
+     * should be inserted.
+     */
+    private int findSlot(View view, int hash) {
+        final int mask = mKeys.length - 1;
+
+        int index = mix(hash) & mask;
+        while (true) {
+            final WeakReference<View> key = mKeys[index];
+            if (key == null || (mHashes[index] == hash && key.get() == view)) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        final WeakReference<View>[] oldKeys = mKeys;
+        final int[] oldHashes = mHashes;
+        final int[] oldCounts = mCounts;
+        final int[] oldGenerations = mGenerations;
+
+        int liveCount = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && oldKeys[i].get() != null) {
+                liveCount++;
+            }
+        }
+
+        // Only grow if most entries are still alive.
+        final int capacity = (liveCount * 4 >= oldKeys.length ? oldKeys.length * 2 :
+                oldKeys.length);
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            final WeakReference<View> key = oldKeys[i];
+            if (key == null) {
+                continue;
+            }
+
+            final View view = key.get();
+            if (view == null) {
+                continue;
+            }
+
+            final int index = findSlot(view, oldHashes[i]);
+            mKeys[index] = key;
+            mHashes[index] = oldHashes[i];
+            mCounts[index] = oldCounts[i];
+            mGenerations[index] = oldGenerations[i];
+            mSize++;
+        }
+    }
+
+    /**
+     * Returns the counter for the given view in the current generation.
+     */
+    int get(View view) {
+        final int index = findSlot(view, System.identityHashCode(view));
+        if (mKeys[index] == null || mGenerations[index] != mGeneration) {
+            return 0;
+        }
+
+        return mCounts[index];
+    }
+
+    /**
+     * Returns the slot for the given view, inserting it if needed. The slot's
+     * counter is reset if it's from a previous generation.
+     */
+    private int findOrInsertSlot(View view) {
+        final int hash = System.identityHashCode(view);
+
+        int index = findSlot(view, hash);
+        if (mKeys[index] == null) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                rehash();
+                index = findSlot(view, hash);
+            }
+
+            mKeys[index] = new WeakReference<View>(view);
+            mHashes[index] = hash;
+            mSize++;
+        }
+
+        if (mGenerations[index] != mGeneration) {
+            mGenerations[index] = mGeneration;
+            mCounts[index] = 0;
+        }
+
+        return index;
+    }
+
+    /**
+     * Increments the counter for the given view in the current generation and
+     * returns its new value.
+     */
+    int increment(View view) {
+        // Find the slot first, inserting might reallocate the arrays.
+        final int index = findOrInsertSlot(view);
+        return ++mCounts[index];
+    }
+
+    /**
+     * Sets the counter for the given view in the current generation.
+     */
+    void put(View view, int value) {
+        final int index = findOrInsertSlot(view);
+        mCounts[index] = value;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    void reset() {
+        mGeneration++;
+
+        if (mGeneration == 0) {
+            // Generation wrapped around, make sure no stale counter
+            // is mistaken for a current one.
+            for (int i = 0; i < mGenerations.length; i++) {
+                mGenerations[i] = 0;
+            }
+            mGeneration = 1;
+        }
+    }
+}
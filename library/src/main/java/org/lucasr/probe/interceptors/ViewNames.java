@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.content.res.Resources;
+import android.view.View;
+
+import org.lucasr.probe.ViewProxy;
+
+/**
+ * Builds human readable names for views, such as {@code FeedItemView#title}.
+ */
+final class ViewNames {
+    private ViewNames() {
+    }
+
+    /**
+     * Returns the view's class, skipping Probe's proxy class.
+     */
+    static Class<?> getViewClass(View view) {
+        final Class<?> viewClass = view.getClass();
+        return (view instanceof ViewProxy ? viewClass.getSuperclass() : viewClass);
+    }
+
+    /**
+     * Returns the name of the view's original class followed by its ID
+     * name, if any.
+     */
+    static String getViewName(View view) {
+        final Class<?> viewClass = getViewClass(view);
+
+        String name = viewClass.getSimpleName();
+        if (name.length() == 0) {
+            name = viewClass.getName();
+        }
+
+        final int id = view.getId();
+        if (id != View.NO_ID) {
+            name += "#" + getIdName(view, id);
+        }
+
+        return name;
+    }
+
+    /**
+     * Returns the resource entry name of the given ID, or its hex value.
+     */
+    static String getIdName(View view, int id) {
+        final Resources resources = view.getResources();
+        if (resources != null) {
+            try {
+                return resources.getResourceEntryName(id);
+            } catch (Resources.NotFoundException e) {
+                // Generated IDs have no name.
+            }
+        }
+
+        return "0x" + Integer.toHexString(id);
+    }
+}
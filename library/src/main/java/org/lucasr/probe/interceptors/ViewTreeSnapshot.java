@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.interceptors;
+
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Copy of a view tree's structure and bounds, taken on the UI thread so that
+ * it can be serialized from a background thread.
+ */
+final class ViewTreeSnapshot {
+    final int mTraversal;
+    final int mCount;
+    final Class<?>[] mViewClasses;
+    final int[] mViewIdentities;
+    final int[] mParentIdentities;
+    final int[] mViewIds;
+    final int[] mBounds;
+
+    private ViewTreeSnapshot(int traversal, int count) {
+        mTraversal = traversal;
+        mCount = count;
+        mViewClasses = new Class<?>[count];
+        mViewIdentities = new int[count];
+        mParentIdentities = new int[count];
+        mViewIds = new int[count];
+        mBounds = new int[count * 4];
+    }
+
+    private static int countViews(View view) {
+        int count = 1;
+
+        if (view instanceof ViewGroup) {
+            final ViewGroup viewGroup = (ViewGroup) view;
+
+            final int childCount = viewGroup.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                count += countViews(viewGroup.getChildAt(i));
+            }
+        }
+
+        return count;
+    }
+
+    private int addView(View view, int parentIdentity, int index) {
+        final int identity = System.identityHashCode(view);
+
+        mViewClasses[index] = ViewNames.getViewClass(view);
+        mViewIdentities[index] = identity;
+        mParentIdentities[index] = parentIdentity;
+        mViewIds[index] = view.getId();
+        mBounds[index * 4] = view.getLeft();
+        mBounds[index * 4 + 1] = view.getTop();
+        mBounds[index * 4 + 2] = view.getWidth();
+        mBounds[index * 4 + 3] = view.getHeight();
+
+        int nextIndex = index + 1;
+        if (view instanceof ViewGroup) {
+            final ViewGroup viewGroup = (ViewGroup) view;
+
+            final int childCount = viewGroup.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                nextIndex = addView(viewGroup.getChildAt(i), identity, nextIndex);
+            }
+        }
+
+        return nextIndex;
+    }
+
+    /**
+     * Takes a snapshot of the tree under the given root view, in depth-first
+     * order. The root's parent identity is 0.
+     */
+    static ViewTreeSnapshot capture(View rootView, int traversal) {
+        final ViewTreeSnapshot snapshot = new ViewTreeSnapshot(traversal, countViews(rootView));
+        snapshot.addView(rootView, 0, 0);
+        return snapshot;
+    }
+}
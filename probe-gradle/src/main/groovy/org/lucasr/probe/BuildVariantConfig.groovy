@@ -18,9 +18,14 @@ package org.lucasr.probe
 
 import com.android.annotations.NonNull
 
+import org.lucasr.probe.internal.ViewProxyGenerator
+
 class BuildVariantConfig {
     private final String name
     private boolean enabled
+    private boolean buildTimeProxies = true
+    private boolean bytecodeProxies
+    private List<String> interceptedMethods = ViewProxyGenerator.INTERCEPTABLE_METHODS
 
     public BuildVariantConfig(@NonNull String name) {
         this.name = name
@@ -37,4 +42,44 @@ class BuildVariantConfig {
     public boolean getEnabled() {
         return enabled
     }
+
+    public void setBuildTimeProxies(boolean buildTimeProxies) {
+        this.buildTimeProxies = buildTimeProxies
+    }
+
+    public boolean getBuildTimeProxies() {
+        return buildTimeProxies
+    }
+
+    /**
+     * Emit build-time proxies as class files instead of Java sources, which
+     * then don't have to be compiled by javac.
+     */
+    public void setBytecodeProxies(boolean bytecodeProxies) {
+        this.bytecodeProxies = bytecodeProxies
+    }
+
+    public boolean getBytecodeProxies() {
+        return bytecodeProxies
+    }
+
+    /**
+     * View methods overridden by build-time proxies e.g. ['draw', 'onDraw'].
+     * Calls to all other view methods won't be intercepted. Defaults to all
+     * interceptable methods.
+     */
+    public void setInterceptedMethods(@NonNull List<String> interceptedMethods) {
+        interceptedMethods.each { method ->
+            if (!ViewProxyGenerator.INTERCEPTABLE_METHODS.contains(method)) {
+                throw new IllegalArgumentException("Unknown view method '${method}', " +
+                        "expected one of ${ViewProxyGenerator.INTERCEPTABLE_METHODS}")
+            }
+        }
+
+        this.interceptedMethods = new ArrayList<String>(interceptedMethods)
+    }
+
+    public List<String> getInterceptedMethods() {
+        return interceptedMethods
+    }
 }
@@ -66,20 +66,48 @@ class ProbePlugin implements Plugin<Project> {
             }
 
             def sourcePath = "${project.buildDir}/generated/source/probe/${variant.dirName}"
+            def classesPath = "${project.buildDir}/intermediates/probe/classes/${variant.dirName}"
             def packageName = "${variant.mergedFlavor.applicationId}.probe"
+            def packagePath = packageName.replace('.', '/')
+            def bytecodeProxies = buildVariant.getBytecodeProxies()
             def task = project.tasks.create("probe${variant.name.capitalize()}Views", ProbeTask)
 
             // Set task properties
             task.variant = variant
             task.packageName = packageName
-            task.outputDir = new File("${sourcePath}/${packageName.replace('.', '/')}")
+            task.buildTimeProxies = buildVariant.getBuildTimeProxies()
+            task.bytecodeProxies = bytecodeProxies
+            task.interceptedMethods = buildVariant.getInterceptedMethods()
+            task.outputDir = new File("${bytecodeProxies ? classesPath : sourcePath}/${packagePath}")
+            task.indexFile = new File("${project.buildDir}/intermediates/probe/" +
+                    "${variant.dirName}/layout-index.txt")
+            task.resourcesDir = variant.mergeResources.outputDir
             task.inputFiles = project.fileTree(dir: variant.mergeResources.outputDir)
                                      .matching { include 'layout*/*.xml' }
 
             // Set task dependencies
             task.dependsOn variant.mergeResources
-            variant.javaCompile.source sourcePath
             variant.javaCompile.dependsOn task
+
+            if (bytecodeProxies) {
+                // Proxy classes don't go through javac, they're added to the
+                // variant's class output once the app's sources are compiled.
+                // Declaring them as inputs re-runs javaCompile whenever the
+                // proxies change, even if the app's sources didn't.
+                variant.javaCompile.inputs.dir classesPath
+                variant.javaCompile.doLast {
+                    // The generated package only holds proxies, mirror it so
+                    // that proxies removed from the task output go away too.
+                    def proxiesDir = new File(variant.javaCompile.destinationDir, packagePath)
+                    project.delete proxiesDir
+                    project.copy {
+                        from "${classesPath}/${packagePath}"
+                        into proxiesDir
+                    }
+                }
+            } else {
+                variant.javaCompile.source sourcePath
+            }
         }
     }
 }
@@ -20,14 +20,24 @@ import com.android.annotations.NonNull
 import com.android.build.gradle.api.ApplicationVariant
 
 import org.gradle.api.DefaultTask
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.incremental.IncrementalTaskInputs
 
+import org.lucasr.probe.internal.LayoutIndex
 import org.lucasr.probe.internal.LayoutResourceParser
+import org.lucasr.probe.internal.ViewProxyClassGenerator
 import org.lucasr.probe.internal.ViewProxyGenerator
 
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
 class ProbeTask extends DefaultTask {
     @NonNull
     ApplicationVariant variant
@@ -35,66 +45,231 @@ class ProbeTask extends DefaultTask {
     @NonNull
     String packageName
 
+    @Input
+    boolean buildTimeProxies
+
+    @NonNull @Input
+    List<String> interceptedMethods
+
+    /**
+     * Whether to emit proxy classes straight as bytecode instead of Java
+     * sources compiled by the variant's javaCompile task.
+     */
+    @Input
+    boolean bytecodeProxies
+
     @NonNull @OutputDirectory
     File outputDir
 
     @NonNull @InputFiles
     Iterable<File> inputFiles
 
+    /**
+     * Merged resources directory the input layout files live in. Layouts
+     * are indexed by their path relative to it.
+     */
+    @NonNull
+    File resourcesDir
+
+    @NonNull @OutputFile
+    File indexFile
+
     @TaskAction
     void taskAction(IncrementalTaskInputs inputs) {
         if (!outputDir.isDirectory()) {
             outputDir.mkdirs()
         }
 
-        if (!inputs.isIncremental()) {
-            parseLayoutFiles(inputFiles)
-            return;
+        LayoutIndex index = (inputs.isIncremental() ? LayoutIndex.read(indexFile) : null)
+        if (index == null) {
+            generateProxies(inputFiles)
+            return
         }
 
-        Set<String> newFiles = new HashSet<String>()
-        boolean isIncremental = true
+        List<File> changedFiles = new ArrayList<File>()
+        List<File> removedFiles = new ArrayList<File>()
 
         inputs.outOfDate { change ->
-            if (change.isAdded()) {
-                newFiles.add(change.file)
-            } else {
-                isIncremental = false
-            }
+            changedFiles.add(change.file)
         }
 
         inputs.removed { change ->
-            isIncremental = false
+            removedFiles.add(change.file)
         }
 
-        // There's no trivial way to figure out what view proxies need to
-        // be added or removed. The plugin only does incremental builds when
-        // new layout files are added for now.
-        if (isIncremental && newFiles.size() > 0) {
-            parseLayoutFiles(newFiles)
-        } else {
-            parseLayoutFiles(inputFiles)
+        // Force a full rebuild on the next run if this one fails midway.
+        indexFile.delete()
+
+        Set<String> oldViewClassNames = index.getViewClassNames()
+
+        removedFiles.each { layoutFile ->
+            index.removeLayout(layoutPath(layoutFile))
+        }
+
+        parseLayoutFiles(changedFiles).each { layoutFile, viewClassNames ->
+            index.putLayout(layoutPath(layoutFile), viewClassNames)
+        }
+
+        Set<String> viewClassNames = index.getViewClassNames()
+        if (viewClassNames != oldViewClassNames) {
+            if (buildTimeProxies) {
+                deleteProxyClasses(oldViewClassNames - viewClassNames)
+                generateProxyClasses(viewClassNames - oldViewClassNames)
+                generateProxyFactory(viewClassNames)
+            }
+            generateViewClassList(viewClassNames)
+        }
+
+        index.write(indexFile)
+    }
+
+    private void generateProxies(Iterable<File> layoutFiles) {
+        // Remove proxies for views that are no longer referenced.
+        outputDir.listFiles().each { file ->
+            file.delete()
+        }
+
+        LayoutIndex index = new LayoutIndex()
+        parseLayoutFiles(layoutFiles).each { layoutFile, viewClassNames ->
+            index.putLayout(layoutPath(layoutFile), viewClassNames)
+        }
+
+        Set<String> viewClassNames = index.getViewClassNames()
+        if (buildTimeProxies) {
+            generateProxyClasses(viewClassNames)
+            generateProxyFactory(viewClassNames)
         }
+        generateViewClassList(viewClassNames)
+
+        index.write(indexFile)
+    }
+
+    /**
+     * Returns the path of the given layout file relative to the merged
+     * resources directory, so that the index doesn't depend on where the
+     * project is checked out.
+     */
+    private String layoutPath(File layoutFile) {
+        return resourcesDir.toURI().relativize(layoutFile.toURI()).path
     }
 
-    private void parseLayoutFiles(Iterable<File> layoutFiles) {
-        layoutFiles.each { layoutFile ->
-            Set<String> viewClassNames = LayoutResourceParser.parse(layoutFile)
-            for (String viewClassName : viewClassNames) {
-                String filename = ViewProxyGenerator.filenameForClassName(viewClassName)
-                File proxyFile = new File(outputDir, filename)
+    /**
+     * Parses the given layout files in parallel. Returns the view class names
+     * referenced by each layout file.
+     */
+    private static SortedMap<File, Set<String>> parseLayoutFiles(Iterable<File> layoutFiles) {
+        SortedMap<File, Set<String>> viewClassNames = new TreeMap<File, Set<String>>()
+
+        List<File> files = layoutFiles.collect { it as File }
+        int threadCount = Math.min(files.size(), Runtime.getRuntime().availableProcessors())
+        if (threadCount <= 1) {
+            files.each { layoutFile ->
+                viewClassNames.put(layoutFile, LayoutResourceParser.parse(layoutFile))
+            }
+
+            return viewClassNames
+        }
 
-                // Proxy class already exists, skip it.
-                if (proxyFile.exists()) {
-                    continue
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount)
+        try {
+            List<Future<Set<String>>> results = files.collect { layoutFile ->
+                executor.submit({
+                    LayoutResourceParser.parse(layoutFile)
+                } as Callable<Set<String>>)
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    viewClassNames.put(files[i], results[i].get())
+                } catch (ExecutionException e) {
+                    throw e.getCause()
                 }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        return viewClassNames
+    }
+
+    private String proxyFilename(String viewClassName) {
+        if (bytecodeProxies) {
+            return ViewProxyClassGenerator.filenameForClassName(viewClassName)
+        } else {
+            return ViewProxyGenerator.filenameForClassName(viewClassName)
+        }
+    }
+
+    private void deleteProxyClasses(Set<String> viewClassNames) {
+        viewClassNames.each { viewClassName ->
+            String filename = proxyFilename(viewClassName)
+            project.logger.debug "Deleting ${filename}"
+            new File(outputDir, filename).delete()
+        }
+    }
+
+    /**
+     * Generates proxies for the given view classes, skipping the ones
+     * that already exist.
+     */
+    private void generateProxyClasses(Set<String> viewClassNames) {
+        for (String viewClassName : viewClassNames) {
+            String filename = proxyFilename(viewClassName)
+            File proxyFile = new File(outputDir, filename)
+
+            // Proxy class already exists, skip it.
+            if (proxyFile.exists()) {
+                continue
+            }
 
-                project.logger.debug "Generating ${filename}"
+            project.logger.debug "Generating ${filename}"
+            if (bytecodeProxies) {
+                proxyFile.withOutputStream { out ->
+                    ViewProxyClassGenerator.generate(out, viewClassName, packageName,
+                            interceptedMethods)
+                }
+            } else {
                 FileWriter writer = new FileWriter(proxyFile)
-                ViewProxyGenerator.generate(writer, viewClassName, packageName)
+                ViewProxyGenerator.generate(writer, viewClassName, packageName,
+                        interceptedMethods)
                 writer.close()
             }
         }
     }
 
+    private void generateProxyFactory(Set<String> viewClassNames) {
+        if (bytecodeProxies) {
+            String filename = ViewProxyClassGenerator.factoryFilename()
+            project.logger.debug "Generating ${filename}"
+
+            new File(outputDir, filename).withOutputStream { out ->
+                ViewProxyClassGenerator.generateFactory(out, viewClassNames, packageName)
+            }
+        } else {
+            String filename = ViewProxyGenerator.factoryFilename()
+            project.logger.debug "Generating ${filename}"
+
+            FileWriter writer = new FileWriter(new File(outputDir, filename))
+            ViewProxyGenerator.generateFactory(writer, viewClassNames, packageName)
+            writer.close()
+        }
+    }
+
+    private void generateViewClassList(Set<String> viewClassNames) {
+        if (bytecodeProxies) {
+            String filename = ViewProxyClassGenerator.viewClassListFilename()
+            project.logger.debug "Generating ${filename}"
+
+            new File(outputDir, filename).withOutputStream { out ->
+                ViewProxyClassGenerator.generateViewClassList(out, viewClassNames, packageName)
+            }
+        } else {
+            String filename = ViewProxyGenerator.viewClassListFilename()
+            project.logger.debug "Generating ${filename}"
+
+            FileWriter writer = new FileWriter(new File(outputDir, filename))
+            ViewProxyGenerator.generateViewClassList(writer, viewClassNames, packageName)
+            writer.close()
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.internal
+
+import com.android.annotations.NonNull
+
+/**
+ * Persisted index of the view classes referenced by each layout file, along
+ * with a reference count per view class. Used by ProbeTask to only update the
+ * proxies affected by modified or removed layout files.
+ *
+ * The index is written in a deterministic order so that identical inputs
+ * always produce identical index files.
+ */
+class LayoutIndex {
+    // Version 2 keys layouts by their path relative to the merged resources.
+    private static final String HEADER = "probe-layout-index 2"
+    private static final String SEPARATOR = "\t"
+
+    private final SortedMap<String, SortedSet<String>> viewClassesByLayout =
+            new TreeMap<String, SortedSet<String>>()
+    private final SortedMap<String, Integer> refCounts = new TreeMap<String, Integer>()
+
+    /**
+     * Reads the index from the given file. Returns null if the file doesn't
+     * exist or can't be read, in which case all layouts should be parsed again.
+     */
+    static LayoutIndex read(@NonNull File indexFile) {
+        if (!indexFile.isFile()) {
+            return null
+        }
+
+        LayoutIndex index = new LayoutIndex()
+
+        List<String> lines = indexFile.readLines("UTF-8")
+        if (lines.isEmpty() || lines[0] != HEADER) {
+            return null
+        }
+
+        for (int i = 1; i < lines.size(); i++) {
+            String[] fields = lines[i].split(SEPARATOR)
+            Set<String> viewClassNames = new TreeSet<String>()
+            for (int j = 1; j < fields.length; j++) {
+                viewClassNames.add(fields[j])
+            }
+
+            index.putLayout(fields[0], viewClassNames)
+        }
+
+        return index
+    }
+
+    void write(@NonNull File indexFile) {
+        indexFile.parentFile.mkdirs()
+        indexFile.withWriter("UTF-8") { writer ->
+            writer.write(HEADER)
+            writer.write("\n")
+
+            viewClassesByLayout.each { layoutPath, viewClassNames ->
+                writer.write(layoutPath)
+                viewClassNames.each { className ->
+                    writer.write(SEPARATOR)
+                    writer.write(className)
+                }
+                writer.write("\n")
+            }
+        }
+    }
+
+    /**
+     * Returns the view classes referenced by at least one layout, sorted.
+     */
+    SortedSet<String> getViewClassNames() {
+        return new TreeSet<String>(refCounts.keySet())
+    }
+
+    int getRefCount(@NonNull String className) {
+        Integer refCount = refCounts.get(className)
+        return (refCount != null ? refCount : 0)
+    }
+
+    /**
+     * Sets the view classes referenced by the given layout, replacing the
+     * ones previously indexed for it.
+     */
+    void putLayout(@NonNull String layoutPath, @NonNull Set<String> viewClassNames) {
+        removeLayout(layoutPath)
+
+        SortedSet<String> layoutClassNames = new TreeSet<String>(viewClassNames)
+        viewClassesByLayout.put(layoutPath, layoutClassNames)
+
+        layoutClassNames.each { className ->
+            refCounts.put(className, getRefCount(className) + 1)
+        }
+    }
+
+    void removeLayout(@NonNull String layoutPath) {
+        SortedSet<String> layoutClassNames = viewClassesByLayout.remove(layoutPath)
+        if (layoutClassNames == null) {
+            return
+        }
+
+        layoutClassNames.each { className ->
+            int refCount = getRefCount(className) - 1
+            if (refCount > 0) {
+                refCounts.put(className, refCount)
+            } else {
+                refCounts.remove(className)
+            }
+        }
+    }
+}
@@ -18,36 +18,65 @@ package org.lucasr.probe.internal
 
 import com.android.annotations.NonNull
 
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
+
+/**
+ * Collects the view class names referenced in layout resources. Layout files
+ * are streamed with StAX, only element names and the class attribute of view
+ * elements are read. Safe to use from several threads.
+ */
 class LayoutResourceParser {
+    private static final String TAG_VIEW = "view"
+    private static final String ATTR_CLASS = "class"
+
+    // XMLInputFactory instances are not guaranteed to be thread-safe.
+    private static final ThreadLocal<XMLInputFactory> inputFactory =
+            new ThreadLocal<XMLInputFactory>() {
+                @Override
+                protected XMLInputFactory initialValue() {
+                    XMLInputFactory factory = XMLInputFactory.newInstance()
+                    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+                    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+                    factory.setProperty(XMLInputFactory.IS_COALESCING, false)
+                    return factory
+                }
+            }
+
     private LayoutResourceParser() {
     }
 
     public static Set<String> parse(@NonNull File layoutFile) {
         Set<String> viewClassNames = new HashSet<String>()
 
-        def rootNode = new XmlParser().parse(layoutFile)
-        traverseLayoutXml(rootNode, viewClassNames)
+        InputStream input = new BufferedInputStream(new FileInputStream(layoutFile))
+        try {
+            XMLStreamReader reader = inputFactory.get().createXMLStreamReader(input)
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue
+                    }
 
-        return viewClassNames
-    }
+                    def name = reader.getLocalName()
+                    if (name == TAG_VIEW) {
+                        name = reader.getAttributeValue(null, ATTR_CLASS)
+                    }
 
-    private static void traverseLayoutXml(Node node, Set<String> viewClassNames) {
-        def name = node.name()
-        if (name == "view") {
-            name = node.@class
-        }
-
-        def className = resolveClassName(name)
-        if (className != null) {
-            viewClassNames.add(className)
-        }
-
-        node.children().each {
-            // children() might contain string elements
-            if (it instanceof Node) {
-                traverseLayoutXml(it, viewClassNames)
+                    def className = (name != null ? resolveClassName(name) : null)
+                    if (className != null) {
+                        viewClassNames.add(className)
+                    }
+                }
+            } finally {
+                reader.close()
             }
+        } finally {
+            input.close()
         }
+
+        return viewClassNames
     }
 
     private static String resolveClassName(String name) {
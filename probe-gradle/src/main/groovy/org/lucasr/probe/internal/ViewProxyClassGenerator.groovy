@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.probe.internal
+
+import com.android.annotations.NonNull
+
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Type
+
+import static org.objectweb.asm.Opcodes.AASTORE
+import static org.objectweb.asm.Opcodes.ACC_FINAL
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC
+import static org.objectweb.asm.Opcodes.ACC_STATIC
+import static org.objectweb.asm.Opcodes.ACC_SUPER
+import static org.objectweb.asm.Opcodes.ACONST_NULL
+import static org.objectweb.asm.Opcodes.ALOAD
+import static org.objectweb.asm.Opcodes.ANEWARRAY
+import static org.objectweb.asm.Opcodes.ARETURN
+import static org.objectweb.asm.Opcodes.BIPUSH
+import static org.objectweb.asm.Opcodes.DUP
+import static org.objectweb.asm.Opcodes.GETFIELD
+import static org.objectweb.asm.Opcodes.GETSTATIC
+import static org.objectweb.asm.Opcodes.GOTO
+import static org.objectweb.asm.Opcodes.ICONST_0
+import static org.objectweb.asm.Opcodes.IFEQ
+import static org.objectweb.asm.Opcodes.IFNULL
+import static org.objectweb.asm.Opcodes.ILOAD
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL
+import static org.objectweb.asm.Opcodes.NEW
+import static org.objectweb.asm.Opcodes.PUTFIELD
+import static org.objectweb.asm.Opcodes.PUTSTATIC
+import static org.objectweb.asm.Opcodes.RETURN
+import static org.objectweb.asm.Opcodes.SIPUSH
+import static org.objectweb.asm.Opcodes.V1_6
+
+/**
+ * Emits the same classes as ViewProxyGenerator straight as bytecode, so that
+ * build-time proxies don't have to go through javac. Generated classes target
+ * Java 6 and don't need stack map frames.
+ */
+class ViewProxyClassGenerator {
+    private static final String OBJECT = "java/lang/Object"
+    private static final String STRING = "java/lang/String"
+    private static final String VIEW_PROXY = "org/lucasr/probe/ViewProxy"
+    private static final String VIEW_PROXY_FACTORY = "org/lucasr/probe/ViewProxyFactory"
+    private static final String INTERCEPTOR = "org/lucasr/probe/Interceptor"
+    private static final String TRAVERSAL_MONITOR = "org/lucasr/probe/TraversalMonitor"
+
+    private static final String INTERCEPTOR_DESC = "Lorg/lucasr/probe/Interceptor;"
+    private static final String VIEW_DESC = "Landroid/view/View;"
+    private static final String CONSTRUCTOR_DESC =
+            "(Landroid/content/Context;Landroid/util/AttributeSet;)V"
+    private static final String CREATE_PROXY_DESC = "(Ljava/lang/String;" +
+            "Landroid/content/Context;Landroid/util/AttributeSet;)Landroid/view/View;"
+
+    private static final String FIELD_INTERCEPTOR = "mInterceptor"
+    private static final String FIELD_INTERCEPT_CALLS = "sInterceptCalls"
+
+    // Method name, access flags and descriptor of the interceptable view methods.
+    private static final List<List<Object>> VIEW_METHODS = [
+        ["onMeasure", ACC_PROTECTED, "(II)V"],
+        ["onLayout", ACC_PROTECTED, "(ZIIII)V"],
+        ["draw", ACC_PUBLIC, "(Landroid/graphics/Canvas;)V"],
+        ["onDraw", ACC_PROTECTED, "(Landroid/graphics/Canvas;)V"],
+        ["requestLayout", ACC_PUBLIC, "()V"],
+        ["forceLayout", ACC_PUBLIC, "()V"]
+    ]
+
+    private ViewProxyClassGenerator() {
+    }
+
+    static String filenameForClassName(String className) {
+        return "${ViewProxyGenerator.generateProxyName(className)}.class"
+    }
+
+    static String factoryFilename() {
+        return "${ViewProxyGenerator.FACTORY_NAME}.class"
+    }
+
+    static String viewClassListFilename() {
+        return "${ViewProxyGenerator.VIEW_CLASS_LIST_NAME}.class"
+    }
+
+    private static String toInternalName(String packageName, String simpleName) {
+        return "${packageName.replace('.', '/')}/${simpleName}"
+    }
+
+    private static String getInvokeName(String methodName) {
+        return "invoke${methodName.substring(0, 1).toUpperCase()}${methodName.substring(1)}"
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value)
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value)
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value)
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(value))
+        }
+    }
+
+    /**
+     * Loads all the arguments of a method with the given descriptor.
+     */
+    private static void loadArgs(MethodVisitor mv, String desc) {
+        int slot = 1
+        Type.getArgumentTypes(desc).each { type ->
+            mv.visitVarInsn(type.getOpcode(ILOAD), slot)
+            slot += type.getSize()
+        }
+    }
+
+    private static void generateConstructor(ClassWriter cw, String superName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", CONSTRUCTOR_DESC, null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        loadArgs(mv, CONSTRUCTOR_DESC)
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", CONSTRUCTOR_DESC, false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    private static void generateInterceptorSetter(ClassWriter cw, String proxyName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setInterceptor",
+                "(${INTERCEPTOR_DESC})V", null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitFieldInsn(PUTFIELD, proxyName, FIELD_INTERCEPTOR, INTERCEPTOR_DESC)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    /**
+     * Generates the view method calling the interceptor if there's one and
+     * calls are being intercepted, or the super method otherwise.
+     */
+    private static void generateInterceptedMethod(ClassWriter cw, String proxyName,
+                                                  String superName, String methodName,
+                                                  int access, String desc) {
+        MethodVisitor mv = cw.visitMethod(access, methodName, desc, null, null)
+        mv.visitCode()
+
+        Label superCase = new Label()
+
+        // Calls are not being intercepted, skip the interceptor.
+        mv.visitFieldInsn(GETSTATIC, TRAVERSAL_MONITOR, FIELD_INTERCEPT_CALLS, "Z")
+        mv.visitJumpInsn(IFEQ, superCase)
+
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitFieldInsn(GETFIELD, proxyName, FIELD_INTERCEPTOR, INTERCEPTOR_DESC)
+        mv.visitJumpInsn(IFNULL, superCase)
+
+        // Interceptor is not null, call it.
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitFieldInsn(GETFIELD, proxyName, FIELD_INTERCEPTOR, INTERCEPTOR_DESC)
+        mv.visitVarInsn(ALOAD, 0)
+        loadArgs(mv, desc)
+        mv.visitMethodInsn(INVOKEVIRTUAL, INTERCEPTOR, methodName,
+                "(${VIEW_DESC}${desc.substring(1)}", false)
+        mv.visitInsn(RETURN)
+
+        // Interceptor is null or skipped, call super method.
+        mv.visitLabel(superCase)
+        mv.visitVarInsn(ALOAD, 0)
+        loadArgs(mv, desc)
+        mv.visitMethodInsn(INVOKESPECIAL, superName, methodName, desc, false)
+        mv.visitInsn(RETURN)
+
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    /**
+     * Generates a public method that simply calls the given super method.
+     */
+    private static void generateSuperCall(ClassWriter cw, String superName, String name,
+                                          String superMethodName, String desc) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, desc, null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        loadArgs(mv, desc)
+        mv.visitMethodInsn(INVOKESPECIAL, superName, superMethodName, desc, false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    /**
+     * Generates a proxy class for the given view class. The proxy class only
+     * overrides the given view methods, see ViewProxyGenerator.INTERCEPTABLE_METHODS.
+     */
+    static void generate(@NonNull OutputStream out, @NonNull String className,
+                         @NonNull String packageName,
+                         @NonNull Collection<String> interceptedMethods) {
+        String proxyName = toInternalName(packageName,
+                ViewProxyGenerator.generateProxyName(className))
+        String superName = className.replace('.', '/')
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, proxyName, null, superName,
+                [VIEW_PROXY] as String[])
+
+        cw.visitField(ACC_PRIVATE, FIELD_INTERCEPTOR, INTERCEPTOR_DESC, null, null).visitEnd()
+
+        generateConstructor(cw, superName)
+        generateInterceptorSetter(cw, proxyName)
+
+        VIEW_METHODS.each { viewMethod ->
+            String methodName = viewMethod[0]
+            int access = viewMethod[1]
+            String desc = viewMethod[2]
+
+            if (interceptedMethods.contains(methodName)) {
+                generateInterceptedMethod(cw, proxyName, superName, methodName, access, desc)
+            }
+
+            generateSuperCall(cw, superName, getInvokeName(methodName), methodName, desc)
+        }
+
+        generateSuperCall(cw, superName, "invokeSetMeasuredDimension", "setMeasuredDimension",
+                "(II)V")
+
+        cw.visitEnd()
+        out.write(cw.toByteArray())
+    }
+
+    private static void generateDefaultConstructor(ClassWriter cw, int access) {
+        MethodVisitor mv = cw.visitMethod(access, "<init>", "()V", null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+    }
+
+    /**
+     * Generates a ViewProxyFactory that maps view class names to direct
+     * constructor calls on their respective proxy classes.
+     */
+    static void generateFactory(@NonNull OutputStream out, @NonNull Collection<String> classNames,
+                                @NonNull String packageName) {
+        // Group class names by hash code so that the generated code can
+        // switch on className.hashCode() before comparing strings.
+        SortedMap<Integer, SortedSet<String>> classNamesByHash =
+                new TreeMap<Integer, SortedSet<String>>()
+        classNames.each { className ->
+            def hash = className.hashCode()
+            if (!classNamesByHash.containsKey(hash)) {
+                classNamesByHash.put(hash, new TreeSet<String>())
+            }
+            classNamesByHash.get(hash).add(className)
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                toInternalName(packageName, ViewProxyGenerator.FACTORY_NAME), null, OBJECT,
+                [VIEW_PROXY_FACTORY] as String[])
+
+        generateDefaultConstructor(cw, ACC_PUBLIC)
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "createProxy", CREATE_PROXY_DESC, null,
+                null)
+        mv.visitCode()
+
+        Label defaultCase = new Label()
+
+        int[] hashes = new int[classNamesByHash.size()]
+        Label[] hashCases = new Label[classNamesByHash.size()]
+        classNamesByHash.keySet().eachWithIndex { hash, i ->
+            hashes[i] = hash
+            hashCases[i] = new Label()
+        }
+
+        // Keys are sorted, as required by lookupswitch.
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING, "hashCode", "()I", false)
+        mv.visitLookupSwitchInsn(defaultCase, hashes, hashCases)
+
+        classNamesByHash.values().eachWithIndex { hashClassNames, i ->
+            mv.visitLabel(hashCases[i])
+
+            hashClassNames.each { className ->
+                String proxyName = toInternalName(packageName,
+                        ViewProxyGenerator.generateProxyName(className))
+
+                Label nextClassName = new Label()
+                mv.visitVarInsn(ALOAD, 1)
+                mv.visitLdcInsn(className)
+                mv.visitMethodInsn(INVOKEVIRTUAL, STRING, "equals", "(Ljava/lang/Object;)Z",
+                        false)
+                mv.visitJumpInsn(IFEQ, nextClassName)
+
+                mv.visitTypeInsn(NEW, proxyName)
+                mv.visitInsn(DUP)
+                mv.visitVarInsn(ALOAD, 2)
+                mv.visitVarInsn(ALOAD, 3)
+                mv.visitMethodInsn(INVOKESPECIAL, proxyName, "<init>", CONSTRUCTOR_DESC, false)
+                mv.visitInsn(ARETURN)
+
+                mv.visitLabel(nextClassName)
+            }
+
+            mv.visitJumpInsn(GOTO, defaultCase)
+        }
+
+        mv.visitLabel(defaultCase)
+        mv.visitInsn(ACONST_NULL)
+        mv.visitInsn(ARETURN)
+
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        out.write(cw.toByteArray())
+    }
+
+    /**
+     * Generates a class listing all view class names referenced in the app's
+     * layouts. Used by Probe.prewarm(Context) to generate runtime proxies
+     * ahead of time.
+     */
+    static void generateViewClassList(@NonNull OutputStream out,
+                                      @NonNull Collection<String> classNames,
+                                      @NonNull String packageName) {
+        String listName = toInternalName(packageName, ViewProxyGenerator.VIEW_CLASS_LIST_NAME)
+        List<String> sortedClassNames = new ArrayList<String>(new TreeSet<String>(classNames))
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+        cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, listName, null, OBJECT, null)
+
+        cw.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL,
+                ViewProxyGenerator.FIELD_VIEW_CLASS_NAMES, "[Ljava/lang/String;", null,
+                null).visitEnd()
+
+        generateDefaultConstructor(cw, ACC_PRIVATE)
+
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null)
+        mv.visitCode()
+
+        pushInt(mv, sortedClassNames.size())
+        mv.visitTypeInsn(ANEWARRAY, STRING)
+        sortedClassNames.eachWithIndex { className, i ->
+            mv.visitInsn(DUP)
+            pushInt(mv, i)
+            mv.visitLdcInsn(className)
+            mv.visitInsn(AASTORE)
+        }
+        mv.visitFieldInsn(PUTSTATIC, listName, ViewProxyGenerator.FIELD_VIEW_CLASS_NAMES,
+                "[Ljava/lang/String;")
+        mv.visitInsn(RETURN)
+
+        mv.visitMaxs(0, 0)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        out.write(cw.toByteArray())
+    }
+}
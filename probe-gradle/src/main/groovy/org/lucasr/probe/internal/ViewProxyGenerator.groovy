@@ -25,6 +25,7 @@ import static javax.lang.model.element.Modifier.FINAL
 import static javax.lang.model.element.Modifier.PRIVATE
 import static javax.lang.model.element.Modifier.PROTECTED
 import static javax.lang.model.element.Modifier.PUBLIC
+import static javax.lang.model.element.Modifier.STATIC
 
 class ViewProxyGenerator {
     private static final String[] PROXY_IMPORTS = [
@@ -32,10 +33,23 @@ class ViewProxyGenerator {
         "android.graphics.Canvas",
         "android.util.AttributeSet",
         "org.lucasr.probe.Interceptor",
+        "org.lucasr.probe.TraversalMonitor",
         "org.lucasr.probe.ViewProxy"
     ]
 
+    private static final String[] FACTORY_IMPORTS = [
+        "android.content.Context",
+        "android.util.AttributeSet",
+        "android.view.View",
+        "org.lucasr.probe.ViewProxyFactory"
+    ]
+
+    static final String FACTORY_NAME = "ProbeProxyFactory"
+    static final String VIEW_CLASS_LIST_NAME = "ProbeViewClasses"
+    static final String FIELD_VIEW_CLASS_NAMES = "VIEW_CLASS_NAMES"
+
     private static final String FIELD_INTERCEPTOR = "mInterceptor"
+    private static final String FIELD_INTERCEPT_CALLS = "TraversalMonitor.sInterceptCalls"
 
     private static final String METHOD_SET_INTERCEPTOR = "setInterceptor"
     private static final String METHOD_ON_MEASURE = "onMeasure"
@@ -45,6 +59,23 @@ class ViewProxyGenerator {
     private static final String METHOD_REQUEST_LAYOUT = "requestLayout"
     private static final String METHOD_FORCE_LAYOUT = "forceLayout"
 
+    /**
+     * View methods that can be intercepted by the generated proxies.
+     */
+    static final List<String> INTERCEPTABLE_METHODS = [
+        METHOD_ON_MEASURE,
+        METHOD_ON_LAYOUT,
+        METHOD_DRAW,
+        METHOD_ON_DRAW,
+        METHOD_REQUEST_LAYOUT,
+        METHOD_FORCE_LAYOUT
+    ].asImmutable()
+
+    // createProxy(String, Context, AttributeSet)
+    private static final String PARAM_CLASS_NAME = "className"
+    private static final String PARAM_CONTEXT = "context"
+    private static final String PARAM_ATTRS = "attrs"
+
     // setInterceptor(Interceptor)
     private static final String PARAM_INTERCEPTOR = "interceptor"
 
@@ -73,17 +104,105 @@ class ViewProxyGenerator {
         return "${generateProxyName(className)}.java"
     }
 
+    static String factoryFilename() {
+        return "${FACTORY_NAME}.java"
+    }
+
+    /**
+     * Generates a ViewProxyFactory that maps view class names to direct
+     * constructor calls on their respective proxy classes.
+     */
+    static void generateFactory(@NonNull Writer writer, @NonNull Collection<String> classNames,
+                                @NonNull String packageName) {
+        // Group class names by hash code so that the generated code can
+        // switch on className.hashCode() before comparing strings.
+        SortedMap<Integer, SortedSet<String>> classNamesByHash =
+                new TreeMap<Integer, SortedSet<String>>()
+        classNames.each { className ->
+            def hash = className.hashCode()
+            if (!classNamesByHash.containsKey(hash)) {
+                classNamesByHash.put(hash, new TreeSet<String>())
+            }
+            classNamesByHash.get(hash).add(className)
+        }
+
+        JavaWriter javaWriter = new JavaWriter(writer)
+        generatePackage(javaWriter, packageName)
+        javaWriter.emitImports(FACTORY_IMPORTS)
+
+        javaWriter.beginType(FACTORY_NAME, "class", EnumSet.of(PUBLIC, FINAL), null,
+                "ViewProxyFactory")
+        javaWriter.beginMethod("View", "createProxy", EnumSet.of(PUBLIC),
+                "String", PARAM_CLASS_NAME, "Context", PARAM_CONTEXT,
+                "AttributeSet", PARAM_ATTRS)
+
+        javaWriter.beginControlFlow("switch (${PARAM_CLASS_NAME}.hashCode())")
+        classNamesByHash.each { hash, hashClassNames ->
+            javaWriter.beginControlFlow("case ${hash}:")
+            hashClassNames.each { className ->
+                javaWriter.beginControlFlow("if (${PARAM_CLASS_NAME}.equals(\"${className}\"))")
+                javaWriter.emitStatement("return new %s(%s, %s)", generateProxyName(className),
+                        PARAM_CONTEXT, PARAM_ATTRS)
+                javaWriter.endControlFlow()
+            }
+            javaWriter.emitStatement("break")
+            javaWriter.endControlFlow()
+        }
+        javaWriter.endControlFlow()
+
+        javaWriter.emitStatement("return null")
+        javaWriter.endMethod()
+
+        javaWriter.endType()
+    }
+
+    static String viewClassListFilename() {
+        return "${VIEW_CLASS_LIST_NAME}.java"
+    }
+
+    /**
+     * Generates a class listing all view class names referenced in the app's
+     * layouts. Used by Probe.prewarm(Context) to generate runtime proxies
+     * ahead of time.
+     */
+    static void generateViewClassList(@NonNull Writer writer,
+                                      @NonNull Collection<String> classNames,
+                                      @NonNull String packageName) {
+        def sb = new StringBuilder("new String[] {\n")
+        new TreeSet<String>(classNames).each { className ->
+            sb.append("    \"${className}\",\n")
+        }
+        sb.append("}")
+
+        JavaWriter javaWriter = new JavaWriter(writer)
+        generatePackage(javaWriter, packageName)
+
+        javaWriter.beginType(VIEW_CLASS_LIST_NAME, "class", EnumSet.of(PUBLIC, FINAL), null)
+        javaWriter.emitField("String[]", FIELD_VIEW_CLASS_NAMES, EnumSet.of(PUBLIC, STATIC, FINAL),
+                sb.toString())
+
+        javaWriter.beginConstructor(EnumSet.of(PRIVATE))
+        javaWriter.endConstructor()
+
+        javaWriter.endType()
+    }
+
+    /**
+     * Generates a proxy class for the given view class. The proxy class only
+     * overrides the given view methods, see INTERCEPTABLE_METHODS.
+     */
     static void generate(@NonNull Writer writer, @NonNull String className,
-                         @NonNull String packageName) {
+                         @NonNull String packageName,
+                         @NonNull Collection<String> interceptedMethods) {
         def proxyName = generateProxyName(className)
 
         JavaWriter javaWriter = new JavaWriter(writer)
         generatePackage(javaWriter, packageName)
         generateImports(javaWriter, className)
-        generateClass(javaWriter, className, proxyName)
+        generateClass(javaWriter, className, proxyName, interceptedMethods)
     }
 
-    private static String generateProxyName(String className) {
+    static String generateProxyName(String className) {
         return "ProbeProxy\$${className.replace('.', '_')}"
     }
 
@@ -97,18 +216,20 @@ class ViewProxyGenerator {
     }
 
     private static void generateClass(JavaWriter javaWriter, String className,
-                                      String proxyName) {
+                                      String proxyName, Collection<String> interceptedMethods) {
         javaWriter.beginType(proxyName, "class", EnumSet.of(PUBLIC, FINAL),
                 className, "ViewProxy")
 
         generateFields(javaWriter)
         generateConstructor(javaWriter)
         generateInterceptorSetter(javaWriter)
-        generateOnMeasureMethod(javaWriter)
-        generateOnLayoutMethod(javaWriter)
-        generateDrawMethods(javaWriter)
-        generateRequestLayoutMethod(javaWriter)
-        generateForceLayoutMethod(javaWriter)
+        generateOnMeasureMethod(javaWriter, interceptedMethods.contains(METHOD_ON_MEASURE))
+        generateOnLayoutMethod(javaWriter, interceptedMethods.contains(METHOD_ON_LAYOUT))
+        generateDrawMethods(javaWriter, interceptedMethods.contains(METHOD_DRAW),
+                interceptedMethods.contains(METHOD_ON_DRAW))
+        generateRequestLayoutMethod(javaWriter,
+                interceptedMethods.contains(METHOD_REQUEST_LAYOUT))
+        generateForceLayoutMethod(javaWriter, interceptedMethods.contains(METHOD_FORCE_LAYOUT))
         generateSetMeasuredDimensionMethod(javaWriter)
 
         javaWriter.endType()
@@ -151,6 +272,12 @@ class ViewProxyGenerator {
                                                        String... args) {
         def methodArgs = generateCommaSeparatedArgs(args)
 
+        // Skip the interceptor altogether while calls are not being intercepted.
+        javaWriter.beginControlFlow("if (!%s)", FIELD_INTERCEPT_CALLS)
+        javaWriter.emitStatement("super.%s(%s)", methodName, methodArgs)
+        javaWriter.emitStatement("return")
+        javaWriter.endControlFlow()
+
         javaWriter.beginControlFlow("if (%s != null)", FIELD_INTERCEPTOR)
         if (methodArgs.length() != 0) {
             javaWriter.emitStatement("%s.%s(this, %s)", FIELD_INTERCEPTOR, methodName, methodArgs)
@@ -169,11 +296,13 @@ class ViewProxyGenerator {
                 "int", PARAM_WIDTH_SPEC, "int", PARAM_HEIGHT_SPEC)
     }
 
-    private static void generateOnMeasureMethod(JavaWriter javaWriter) {
-        beginOnMeasureMethod(javaWriter, METHOD_ON_MEASURE, PROTECTED)
-        generateInterceptorConditional(javaWriter, METHOD_ON_MEASURE, PARAM_WIDTH_SPEC,
-                PARAM_HEIGHT_SPEC)
-        javaWriter.endMethod()
+    private static void generateOnMeasureMethod(JavaWriter javaWriter, boolean intercept) {
+        if (intercept) {
+            beginOnMeasureMethod(javaWriter, METHOD_ON_MEASURE, PROTECTED)
+            generateInterceptorConditional(javaWriter, METHOD_ON_MEASURE, PARAM_WIDTH_SPEC,
+                    PARAM_HEIGHT_SPEC)
+            javaWriter.endMethod()
+        }
 
         beginOnMeasureMethod(javaWriter, "invokeOnMeasure", PUBLIC)
         javaWriter.emitStatement("super.%s(%s, %s)", METHOD_ON_MEASURE, PARAM_WIDTH_SPEC,
@@ -188,11 +317,13 @@ class ViewProxyGenerator {
                         "int", PARAM_RIGHT, "int", PARAM_BOTTOM)
     }
 
-    private static void generateOnLayoutMethod(JavaWriter javaWriter) {
-        beginOnLayoutMethod(javaWriter, METHOD_ON_LAYOUT, PROTECTED)
-        generateInterceptorConditional(javaWriter, METHOD_ON_LAYOUT, PARAM_CHANGED,
-                PARAM_LEFT, PARAM_TOP, PARAM_RIGHT, PARAM_BOTTOM)
-        javaWriter.endMethod()
+    private static void generateOnLayoutMethod(JavaWriter javaWriter, boolean intercept) {
+        if (intercept) {
+            beginOnLayoutMethod(javaWriter, METHOD_ON_LAYOUT, PROTECTED)
+            generateInterceptorConditional(javaWriter, METHOD_ON_LAYOUT, PARAM_CHANGED,
+                    PARAM_LEFT, PARAM_TOP, PARAM_RIGHT, PARAM_BOTTOM)
+            javaWriter.endMethod()
+        }
 
         beginOnLayoutMethod(javaWriter, "invokeOnLayout", PUBLIC)
         javaWriter.emitStatement("super.%s(%s, %s, %s, %s, %s)", METHOD_ON_LAYOUT,
@@ -206,18 +337,23 @@ class ViewProxyGenerator {
                 "Canvas", PARAM_CANVAS)
     }
 
-    private static void generateDrawMethods(JavaWriter javaWriter) {
-        beginDrawMethod(javaWriter, METHOD_DRAW, PUBLIC)
-        generateInterceptorConditional(javaWriter, METHOD_DRAW, PARAM_CANVAS)
-        javaWriter.endMethod()
+    private static void generateDrawMethods(JavaWriter javaWriter, boolean interceptDraw,
+                                            boolean interceptOnDraw) {
+        if (interceptDraw) {
+            beginDrawMethod(javaWriter, METHOD_DRAW, PUBLIC)
+            generateInterceptorConditional(javaWriter, METHOD_DRAW, PARAM_CANVAS)
+            javaWriter.endMethod()
+        }
 
         beginDrawMethod(javaWriter, "invokeDraw", PUBLIC)
         javaWriter.emitStatement("super.%s(%s)", METHOD_DRAW, PARAM_CANVAS)
         javaWriter.endMethod()
 
-        beginDrawMethod(javaWriter, METHOD_ON_DRAW, PROTECTED)
-        generateInterceptorConditional(javaWriter, METHOD_ON_DRAW, PARAM_CANVAS)
-        javaWriter.endMethod()
+        if (interceptOnDraw) {
+            beginDrawMethod(javaWriter, METHOD_ON_DRAW, PROTECTED)
+            generateInterceptorConditional(javaWriter, METHOD_ON_DRAW, PARAM_CANVAS)
+            javaWriter.endMethod()
+        }
 
         beginDrawMethod(javaWriter, "invokeOnDraw", PUBLIC)
         javaWriter.emitStatement("super.%s(%s)", METHOD_ON_DRAW, PARAM_CANVAS)
@@ -228,10 +364,12 @@ class ViewProxyGenerator {
         javaWriter.beginMethod("void", methodName, EnumSet.of(PUBLIC))
     }
 
-    private static void generateRequestLayoutMethod(JavaWriter javaWriter) {
-        beginForceLayoutMethod(javaWriter, METHOD_REQUEST_LAYOUT)
-        generateInterceptorConditional(javaWriter, METHOD_REQUEST_LAYOUT)
-        javaWriter.endMethod()
+    private static void generateRequestLayoutMethod(JavaWriter javaWriter, boolean intercept) {
+        if (intercept) {
+            beginForceLayoutMethod(javaWriter, METHOD_REQUEST_LAYOUT)
+            generateInterceptorConditional(javaWriter, METHOD_REQUEST_LAYOUT)
+            javaWriter.endMethod()
+        }
 
         beginForceLayoutMethod(javaWriter, "invokeRequestLayout")
         javaWriter.emitStatement("super.%s()", METHOD_REQUEST_LAYOUT)
@@ -242,10 +380,12 @@ class ViewProxyGenerator {
         javaWriter.beginMethod("void", methodName, EnumSet.of(PUBLIC))
     }
 
-    private static void generateForceLayoutMethod(JavaWriter javaWriter) {
-        beginForceLayoutMethod(javaWriter, METHOD_FORCE_LAYOUT)
-        generateInterceptorConditional(javaWriter, METHOD_FORCE_LAYOUT)
-        javaWriter.endMethod()
+    private static void generateForceLayoutMethod(JavaWriter javaWriter, boolean intercept) {
+        if (intercept) {
+            beginForceLayoutMethod(javaWriter, METHOD_FORCE_LAYOUT)
+            generateInterceptorConditional(javaWriter, METHOD_FORCE_LAYOUT)
+            javaWriter.endMethod()
+        }
 
         beginForceLayoutMethod(javaWriter, "invokeForceLayout")
         javaWriter.emitStatement("super.%s()", METHOD_FORCE_LAYOUT)